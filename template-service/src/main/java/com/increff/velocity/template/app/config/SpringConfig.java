@@ -6,7 +6,11 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
 import com.fasterxml.jackson.datatype.jsr310.ser.ZonedDateTimeSerializer;
+import com.increff.velocity.template.app.store.InMemoryTemplateStore;
+import com.increff.velocity.template.app.store.SharedDirectoryTemplateStore;
+import com.increff.velocity.template.app.store.TemplateStore;
 import com.nextscm.commons.spring.server.WebMvcConfig;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.*;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.web.multipart.MultipartResolver;
@@ -14,6 +18,9 @@ import org.springframework.web.multipart.support.StandardServletMultipartResolve
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -53,6 +60,25 @@ public class SpringConfig extends WebMvcConfigurerAdapter {
                 .modules(javaTimeModule).build();
     }
 
+    /**
+     * "directory" stores templates in template.store.path, which must be shared by all nodes behind the load balancer.
+     * "memory" keeps them in this JVM only, for tests and local development.
+     */
+    @Bean(destroyMethod = "close")
+    public TemplateStore templateStore(@Value("${template.store.type:directory}") String storeType,
+                                       @Value("${template.store.path:#{null}}") String storePath,
+                                       @Value("${template.store.poll-interval-millis:2000}") long pollIntervalMillis) throws IOException {
+        if ("memory".equalsIgnoreCase(storeType)) {
+            return new InMemoryTemplateStore();
+        }
+        if (storePath == null || storePath.isEmpty()) {
+            storePath = System.getProperty("user.home") + File.separator + "template-store";
+        }
+        SharedDirectoryTemplateStore templateStore = new SharedDirectoryTemplateStore(Paths.get(storePath), pollIntervalMillis);
+        templateStore.start();
+        return templateStore;
+    }
+
 
 
 }
\ No newline at end of file
@@ -1,8 +1,20 @@
 package com.increff.velocity.template.app.controller;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.increff.velocity.template.app.dto.OutputBufferDto;
+import com.increff.velocity.template.app.dto.PayloadProjectionDto;
 import com.increff.velocity.template.app.dto.PdfDto;
+import com.increff.velocity.template.app.dto.PreviewSessionDto;
+import com.increff.velocity.template.app.dto.RenderAdmissionDto;
+import com.increff.velocity.template.app.dto.RenderBudgetDto;
+import com.increff.velocity.template.app.dto.RenderReportDto;
+import com.increff.velocity.template.app.dto.TemplateDto;
+import com.increff.velocity.template.app.model.AdmissionStats;
+import com.increff.velocity.template.app.model.BudgetStats;
+import com.increff.velocity.template.app.model.BufferPoolStats;
+import com.increff.velocity.template.app.model.PreviewStats;
+import com.increff.velocity.template.app.model.RenderBudget;
+import com.increff.velocity.template.app.model.RenderReport;
+import com.increff.velocity.template.app.render.ChunkedOutputStream;
 import com.nextscm.commons.spring.common.ApiException;
 import com.nextscm.commons.spring.common.ApiStatus;
 import io.swagger.annotations.Api;
@@ -10,15 +22,17 @@ import io.swagger.annotations.ApiOperation;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.http.MediaType;
 import org.springframework.util.FileCopyUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.util.List;
 
 @RestController
 @RequestMapping(value = "/api/render-pdf")
@@ -28,39 +42,59 @@ public class PdfController {
     @Autowired
     private PdfDto pdfDto;
     
+    @Autowired
+    private TemplateDto templateDto;
+    
     @Autowired
     private ResourceLoader resourceLoader;
     
     @Autowired
-    private ObjectMapper objectMapper;
+    private PayloadProjectionDto payloadProjectionDto;
+
+    @Autowired
+    private RenderReportDto renderReportDto;
+
+    @Autowired
+    private RenderAdmissionDto renderAdmissionDto;
+
+    @Autowired
+    private PreviewSessionDto previewSessionDto;
+
+    @Autowired
+    private RenderBudgetDto renderBudgetDto;
+
+    @Autowired
+    private OutputBufferDto outputBufferDto;
 
     @PostMapping("")
     @ApiOperation(value = "Render PDF from template and JSON data")
-    public String renderPdf(@RequestParam("file") MultipartFile file,
-                            @RequestParam("jsonString") String jsonString) throws ApiException, JsonProcessingException {
+    public void renderPdf(@RequestParam("file") MultipartFile file,
+                          @RequestParam("jsonString") String jsonString,
+                          @RequestParam(value = "previewKey", required = false) String previewKey,
+                          HttpServletResponse response) throws ApiException, IOException {
         System.out.println("=== CONTROLLER: RENDER PDF START ===");
         System.out.println("File name: " + (file != null ? file.getOriginalFilename() : "null"));
-        System.out.println("JSON string: " + jsonString);
+        System.out.println("JSON string length: " + (jsonString != null ? jsonString.length() : "null"));
         
-        byte[] result = pdfDto.renderPdf(file, jsonString);
-        System.out.println("Result size: " + (result != null ? result.length : "null"));
+        ChunkedOutputStream result = pdfDto.renderPdf(file, jsonString, previewKey);
+        System.out.println("Result size: " + (result != null ? result.size() : "null"));
         
-        String base64Result = Base64.getEncoder().encodeToString(result);
+        writeBase64(result, response);
         System.out.println("=== CONTROLLER: RENDER PDF END ===");
-        return base64Result;
     }
     
     @PostMapping("/template-upload")
     @ApiOperation(value = "Render PDF using an uploaded template file")
-    public String renderPdfFromUploadedTemplate(
+    public void renderPdfFromUploadedTemplate(
             @RequestParam("templateFile") MultipartFile templateFile,
-            @RequestParam("jsonData") String jsonData) throws ApiException, JsonProcessingException {
+            @RequestParam("jsonData") String jsonData,
+            @RequestParam(value = "previewKey", required = false) String previewKey,
+            HttpServletResponse response) throws ApiException, IOException {
         
         System.out.println("=== CONTROLLER: TEMPLATE UPLOAD START ===");
         System.out.println("Template file name: " + (templateFile != null ? templateFile.getOriginalFilename() : "null"));
         System.out.println("Template file size: " + (templateFile != null ? templateFile.getSize() : "null"));
         System.out.println("JSON data length: " + (jsonData != null ? jsonData.length() : "null"));
-        System.out.println("JSON data: " + jsonData);
         
         // Validate inputs
         if (templateFile == null || templateFile.isEmpty()) {
@@ -73,31 +107,32 @@ public class PdfController {
             throw new ApiException(ApiStatus.UNKNOWN_ERROR, "JSON data is required");
         }
         
-        // Validate JSON
+        // Validate JSON without building a tree of the whole payload
         try {
-            objectMapper.readTree(jsonData);
+            payloadProjectionDto.validateJson(jsonData);
             System.out.println("JSON validation successful");
-        } catch (JsonProcessingException e) {
+        } catch (IOException e) {
             System.out.println("ERROR: Invalid JSON - " + e.getMessage());
             throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Invalid JSON data: " + e.getMessage());
         }
         
         // Render PDF using the uploaded template
         System.out.println("Calling pdfDto.renderPdf...");
-        byte[] result = pdfDto.renderPdf(templateFile, jsonData);
-        System.out.println("PDF generation result size: " + (result != null ? result.length : "null"));
+        ChunkedOutputStream result = pdfDto.renderPdf(templateFile, jsonData, previewKey);
+        System.out.println("PDF generation result size: " + (result != null ? result.size() : "null"));
+        System.out.println("Base64 result length: " + (result != null ? result.getBase64Length() : "null"));
         
-        String base64Result = Base64.getEncoder().encodeToString(result);
-        System.out.println("Base64 result length: " + base64Result.length());
+        writeBase64(result, response);
         System.out.println("=== CONTROLLER: TEMPLATE UPLOAD END ===");
-        return base64Result;
     }
     
     @PostMapping("/sample/{templateType}")
     @ApiOperation(value = "Render PDF using sample JSON data")
-    public String renderPdfWithSample(
+    public void renderPdfWithSample(
             @RequestParam("file") MultipartFile file,
-            @PathVariable("templateType") String templateType) throws ApiException, IOException {
+            @PathVariable("templateType") String templateType,
+            @RequestParam(value = "previewKey", required = false) String previewKey,
+            HttpServletResponse response) throws ApiException, IOException {
         
         // Load appropriate sample JSON based on template type
         String sampleJsonPath = "classpath:sample-" + templateType + ".json";
@@ -113,68 +148,62 @@ public class PdfController {
             jsonString = FileCopyUtils.copyToString(reader);
         }
         
-        // Validate JSON
+        // Validate JSON without building a tree of the whole payload
         try {
-            objectMapper.readTree(jsonString);
-        } catch (JsonProcessingException e) {
+            payloadProjectionDto.validateJson(jsonString);
+        } catch (IOException e) {
             throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Invalid sample JSON: " + e.getMessage());
         }
         
         // Render PDF
-        byte[] result = pdfDto.renderPdf(file, jsonString);
-        return Base64.getEncoder().encodeToString(result);
+        writeBase64(pdfDto.renderPdf(file, jsonString, previewKey), response);
     }
     
     @PostMapping("/template/{templateName}")
-    @ApiOperation(value = "Render PDF using a template from resources")
-    public String renderPdfWithResourceTemplate(
+    @ApiOperation(value = "Render PDF using a stored or bundled template, optionally pinned to a version")
+    public void renderPdfWithResourceTemplate(
             @PathVariable("templateName") String templateName,
-            @RequestParam("jsonString") String jsonString) throws ApiException, IOException {
+            @RequestParam("jsonString") String jsonString,
+            @RequestParam(value = "version", required = false) String version,
+            @RequestParam(value = "previewKey", required = false) String previewKey,
+            HttpServletResponse response) throws ApiException, IOException {
         
-        // Load template from resources
-        String templatePath = "classpath:templates/" + templateName;
-        Resource templateResource = resourceLoader.getResource(templatePath);
-        
-        if (!templateResource.exists()) {
-            throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Template not found: " + templateName);
-        }
-        
-        // Read template content
+        // Load the template from the template store or resources, pinned to a version when one is given
         String templateContent;
-        try (Reader reader = new InputStreamReader(templateResource.getInputStream(), StandardCharsets.UTF_8)) {
-            templateContent = FileCopyUtils.copyToString(reader);
+        try {
+            templateContent = templateDto.getTemplateContent(templateName, version);
+        } catch (IOException e) {
+            throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Template not found: " + templateName
+                    + (version != null ? "@" + version : ""));
         }
         
-        // Validate JSON
+        // Validate JSON without building a tree of the whole payload
         try {
-            objectMapper.readTree(jsonString);
-        } catch (JsonProcessingException e) {
+            payloadProjectionDto.validateJson(jsonString);
+        } catch (IOException e) {
             throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Invalid JSON: " + e.getMessage());
         }
         
         // Render PDF using template content
-        byte[] result = pdfDto.renderPdfFromString(templateContent, jsonString);
-        return Base64.getEncoder().encodeToString(result);
+        writeBase64(pdfDto.renderPdfFromString(templateName, templateContent, jsonString, previewKey), response);
     }
     
     @PostMapping("/template/{templateName}/sample/{templateType}")
-    @ApiOperation(value = "Render PDF using a template from resources and sample JSON")
-    public String renderPdfWithResourceTemplateAndSample(
+    @ApiOperation(value = "Render PDF using a stored or bundled template and sample JSON")
+    public void renderPdfWithResourceTemplateAndSample(
             @PathVariable("templateName") String templateName,
-            @PathVariable("templateType") String templateType) throws ApiException, IOException {
-        
-        // Load template from resources
-        String templatePath = "classpath:templates/" + templateName;
-        Resource templateResource = resourceLoader.getResource(templatePath);
-        
-        if (!templateResource.exists()) {
-            throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Template not found: " + templateName);
-        }
+            @PathVariable("templateType") String templateType,
+            @RequestParam(value = "version", required = false) String version,
+            @RequestParam(value = "previewKey", required = false) String previewKey,
+            HttpServletResponse response) throws ApiException, IOException {
         
-        // Read template content
+        // Load the template from the template store or resources, pinned to a version when one is given
         String templateContent;
-        try (Reader reader = new InputStreamReader(templateResource.getInputStream(), StandardCharsets.UTF_8)) {
-            templateContent = FileCopyUtils.copyToString(reader);
+        try {
+            templateContent = templateDto.getTemplateContent(templateName, version);
+        } catch (IOException e) {
+            throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Template not found: " + templateName
+                    + (version != null ? "@" + version : ""));
         }
         
         // Load appropriate sample JSON based on template type
@@ -191,15 +220,69 @@ public class PdfController {
             jsonString = FileCopyUtils.copyToString(reader);
         }
         
-        // Validate JSON
+        // Validate JSON without building a tree of the whole payload
         try {
-            objectMapper.readTree(jsonString);
-        } catch (JsonProcessingException e) {
+            payloadProjectionDto.validateJson(jsonString);
+        } catch (IOException e) {
             throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Invalid sample JSON: " + e.getMessage());
         }
         
         // Render PDF using template content and sample data
-        byte[] result = pdfDto.renderPdfFromString(templateContent, jsonString);
-        return Base64.getEncoder().encodeToString(result);
+        writeBase64(pdfDto.renderPdfFromString(templateName, templateContent, jsonString, previewKey), response);
+    }
+
+    /**
+     * Write a PDF to the response as Base64 text, encoding from its buffers, and release the buffers
+     */
+    private void writeBase64(ChunkedOutputStream pdf, HttpServletResponse response) throws IOException {
+        try {
+            response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+            response.setCharacterEncoding(StandardCharsets.US_ASCII.name());
+            long base64Length = pdf.getBase64Length();
+            if (base64Length <= Integer.MAX_VALUE) {
+                response.setContentLength((int) base64Length);
+            }
+            pdf.writeBase64To(response.getOutputStream());
+            response.flushBuffer();
+        } finally {
+            outputBufferDto.release(pdf);
+        }
+    }
+
+    @GetMapping("/reports")
+    @ApiOperation(value = "Get size and time reports of recent renders")
+    public List<RenderReport> getRenderReports(
+            @RequestParam(value = "templateName", required = false) String templateName) {
+        return renderReportDto.getReports(templateName);
+    }
+
+    @GetMapping("/admission")
+    @ApiOperation(value = "Get the state of the light and heavy render lanes")
+    public AdmissionStats getAdmissionStats() {
+        return renderAdmissionDto.getStats();
+    }
+
+    @GetMapping("/previews")
+    @ApiOperation(value = "Get counts of superseded preview renders and the CPU time their cancellation saved")
+    public PreviewStats getPreviewStats() {
+        return previewSessionDto.getStats();
+    }
+
+    @GetMapping("/budget")
+    @ApiOperation(value = "Get the render budget that applies to a template")
+    public RenderBudget getRenderBudget(@RequestParam(value = "templateName", required = false) String templateName) {
+        return renderBudgetDto.getBudget(templateName);
+    }
+
+    @GetMapping("/budgets")
+    @ApiOperation(value = "Get the number of renders aborted for exceeding each budget")
+    public BudgetStats getBudgetStats() {
+        return renderBudgetDto.getStats();
+    }
+
+    @GetMapping("/buffers")
+    @ApiOperation(value = "Get the output buffer pool state and the bytes allocated per PDF output")
+    public BufferPoolStats getBufferStats() {
+        return outputBufferDto.getStats();
     }
 }
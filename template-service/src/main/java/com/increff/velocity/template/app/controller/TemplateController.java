@@ -1,7 +1,13 @@
 package com.increff.velocity.template.app.controller;
 
+import com.increff.velocity.template.app.dto.PayloadProjectionDto;
+import com.increff.velocity.template.app.dto.TemplateCostDto;
 import com.increff.velocity.template.app.dto.TemplateDto;
+import com.increff.velocity.template.app.model.PayloadProjection;
+import com.increff.velocity.template.app.model.TemplateCostProfile;
 import com.increff.velocity.template.app.model.TemplateInfo;
+import com.increff.velocity.template.app.model.TemplateValidationReport;
+import com.increff.velocity.template.app.model.TemplateVersion;
 import com.nextscm.commons.spring.common.ApiException;
 import com.nextscm.commons.spring.common.ApiStatus;
 import io.swagger.annotations.Api;
@@ -23,6 +29,12 @@ public class TemplateController {
     @Autowired
     private TemplateDto templateDto;
 
+    @Autowired
+    private TemplateCostDto templateCostDto;
+
+    @Autowired
+    private PayloadProjectionDto payloadProjectionDto;
+
     @GetMapping("")
     @ApiOperation(value = "Get all available templates")
     public List<String> getAllTemplates() {
@@ -41,11 +53,12 @@ public class TemplateController {
     
     @GetMapping("/{templateName}/content")
     @ApiOperation(value = "Get the content of a specific template")
-    public ResponseEntity<String> getTemplateContent(@PathVariable("templateName") String templateName) {
+    public ResponseEntity<String> getTemplateContent(@PathVariable("templateName") String templateName,
+            @RequestParam(value = "version", required = false) String version) {
         System.out.println("=== CONTROLLER: GET TEMPLATE CONTENT ===");
-        System.out.println("Template name: " + templateName);
+        System.out.println("Template name: " + templateName + ", version: " + version);
         try {
-            String content = templateDto.getTemplateContent(templateName);
+            String content = templateDto.getTemplateContent(templateName, version);
             System.out.println("Template content length: " + (content != null ? content.length() : "null"));
             System.out.println("Template content (first 200 chars): " + 
                 (content != null ? content.substring(0, Math.min(200, content.length())) : "null"));
@@ -57,11 +70,56 @@ public class TemplateController {
         }
     }
     
+    @GetMapping("/{templateName}/versions")
+    @ApiOperation(value = "Get all stored versions of a template, oldest first")
+    public ResponseEntity<List<TemplateVersion>> getTemplateVersions(@PathVariable("templateName") String templateName) {
+        try {
+            return ResponseEntity.ok(templateDto.getTemplateVersions(templateName));
+        } catch (IOException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+    
+    @GetMapping("/{templateName}/cost")
+    @ApiOperation(value = "Get the static cost analysis of a template")
+    public ResponseEntity<TemplateCostProfile> getTemplateCost(@PathVariable("templateName") String templateName) {
+        try {
+            String content = templateDto.getTemplateContent(templateName);
+            return ResponseEntity.ok(templateCostDto.getProfile(templateName, content));
+        } catch (IOException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+    
+    @GetMapping("/{templateName}/projection")
+    @ApiOperation(value = "Get the payload paths a template reads")
+    public ResponseEntity<PayloadProjection> getTemplateProjection(@PathVariable("templateName") String templateName) {
+        try {
+            String content = templateDto.getTemplateContent(templateName);
+            return ResponseEntity.ok(payloadProjectionDto.getProjection(templateName, content));
+        } catch (IOException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+    
+    @GetMapping("/{templateName}/validation")
+    @ApiOperation(value = "Get the validation report saved when a template version was uploaded")
+    public ResponseEntity<TemplateValidationReport> getTemplateValidation(@PathVariable("templateName") String templateName,
+            @RequestParam(value = "version", required = false) String version) {
+        try {
+            TemplateValidationReport report = templateDto.getValidationReport(templateName, version);
+            return report != null ? ResponseEntity.ok(report) : ResponseEntity.notFound().build();
+        } catch (IOException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+    
     @PostMapping("/upload")
-    @ApiOperation(value = "Upload and save a template file")
+    @ApiOperation(value = "Compile, dry render and save a template file")
     public ResponseEntity<?> uploadTemplate(
             @RequestParam("file") MultipartFile file,
-            @RequestParam(value = "overwrite", defaultValue = "false") boolean overwrite) {
+            @RequestParam(value = "overwrite", defaultValue = "false") boolean overwrite,
+            @RequestParam(value = "maxRegressionPercent", required = false) Double maxRegressionPercent) {
         
         try {
             // Validate template file
@@ -76,8 +134,8 @@ public class TemplateController {
                 return ResponseEntity.badRequest().body("Invalid template file. Template must have .fo.vm extension");
             }
             
-            // Save the template
-            TemplateInfo savedTemplate = templateDto.saveTemplate(file, overwrite);
+            // Validate and save the template
+            TemplateInfo savedTemplate = templateDto.saveTemplate(file, overwrite, maxRegressionPercent);
             return ResponseEntity.ok(savedTemplate);
             
         } catch (ApiException e) {
@@ -0,0 +1,202 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.commons.template.Resources;
+import com.increff.velocity.template.app.render.GuardedReader;
+import com.increff.velocity.template.app.render.PageBoundaryHandler;
+import com.increff.velocity.template.app.render.RenderControl;
+import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.apps.Fop;
+import org.apache.fop.apps.FopConfParser;
+import org.apache.fop.apps.FopFactory;
+import org.apache.fop.apps.FormattingResults;
+import org.apache.fop.apps.io.ResourceResolverFactory;
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.xmlgraphics.io.Resource;
+import org.apache.xmlgraphics.io.ResourceResolver;
+import org.apache.xmlgraphics.util.MimeConstants;
+import org.springframework.stereotype.Service;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.FileCopyUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs FOP with factories built once per configuration variant.
+ * Reusing the factory keeps parsed fonts and decoded images cached across renders instead of
+ * reloading them for every PDF.
+ */
+@Service
+public class FopDto {
+
+    private static final URI BASE_URI = new File(".").toURI();
+    private static final String PDF_RENDERER_MIME = "application/pdf";
+
+    private final Map<Boolean, FopFactory> factories = new ConcurrentHashMap<>();
+    // Optimized images of the render laid out on the current thread. FOP resolves images on the thread that runs the
+    // transformation, and the resolver is shared by every render of a factory.
+    private final ThreadLocal<Map<String, byte[]>> renderImages = new ThreadLocal<>();
+    private volatile byte[] baseConfiguration;
+
+    /**
+     * Lay out an FO document into a PDF.
+     * @param fo Reader of the FO document
+     * @param compressObjectStreams Whether to write the PDF with compressed object and cross-reference streams
+     * @param out The stream the PDF is written to
+     * @param control The control of the render, checked while the FO is read and at every page boundary
+     * @param images The optimized images the FO references, by id
+     * @return The number of pages rendered
+     */
+    public int convertToPdf(Reader fo, boolean compressObjectStreams, OutputStream out, RenderControl control,
+                            Map<String, byte[]> images) throws IOException, SAXException, TransformerException {
+        FopFactory fopFactory = getFopFactory(compressObjectStreams);
+        FOUserAgent userAgent = fopFactory.newFOUserAgent();
+        IFDocumentHandler documentHandler = userAgent.getRendererFactory()
+                .createDocumentHandler(userAgent, MimeConstants.MIME_PDF);
+        userAgent.setDocumentHandlerOverride(new PageBoundaryHandler(documentHandler, control));
+        Fop fop = fopFactory.newFop(MimeConstants.MIME_PDF, userAgent, out);
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        renderImages.set(images);
+        try {
+            transformer.transform(new StreamSource(new GuardedReader(fo, control)),
+                    new SAXResult(fop.getDefaultHandler()));
+        } finally {
+            renderImages.remove();
+        }
+        FormattingResults results = fop.getResults();
+        return results != null ? results.getPageCount() : 0;
+    }
+
+    private FopFactory getFopFactory(boolean compressObjectStreams) throws IOException, SAXException {
+        FopFactory fopFactory = factories.get(compressObjectStreams);
+        if (fopFactory != null) {
+            return fopFactory;
+        }
+        synchronized (factories) {
+            fopFactory = factories.get(compressObjectStreams);
+            if (fopFactory == null) {
+                byte[] configuration = compressObjectStreams ? withObjectStreams(getBaseConfiguration()) : getBaseConfiguration();
+                FopConfParser parser = new FopConfParser(new ByteArrayInputStream(configuration), BASE_URI,
+                        new RenderResourceResolver());
+                fopFactory = parser.getFopFactoryBuilder().build();
+                factories.put(compressObjectStreams, fopFactory);
+            }
+            return fopFactory;
+        }
+    }
+
+    private byte[] getBaseConfiguration() throws IOException {
+        if (baseConfiguration == null) {
+            baseConfiguration = FileCopyUtils.copyToByteArray(Resources.getResource(Resources.FOP_DATA_RESOURCE));
+        }
+        return baseConfiguration;
+    }
+
+    /**
+     * Add PDF 1.5 compressed object streams to the PDF renderer of a FOP configuration.
+     * FOP versions without object stream support ignore the option and still write flate compressed content streams.
+     */
+    private static byte[] withObjectStreams(byte[] configuration) throws IOException, SAXException {
+        try {
+            DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+            Document document = builderFactory.newDocumentBuilder().parse(new ByteArrayInputStream(configuration));
+            Element root = document.getDocumentElement();
+            Element renderers = firstChild(root, "renderers", null);
+            if (renderers == null) {
+                renderers = (Element) root.appendChild(document.createElement("renderers"));
+            }
+            Element renderer = firstChild(renderers, "renderer", PDF_RENDERER_MIME);
+            if (renderer == null) {
+                renderer = (Element) renderers.appendChild(document.createElement("renderer"));
+                renderer.setAttribute("mime", PDF_RENDERER_MIME);
+            }
+            setChildText(renderer, "version", "1.5");
+            setChildText(renderer, "use-object-streams", "true");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document), new StreamResult(out));
+            return out.toByteArray();
+        } catch (ParserConfigurationException | TransformerException e) {
+            throw new IOException("Error while preparing FOP configuration: " + e.getMessage(), e);
+        }
+    }
+
+    private static Element firstChild(Element parent, String name, String mime) {
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if (child instanceof Element && name.equals(child.getNodeName())
+                    && (mime == null || mime.equals(((Element) child).getAttribute("mime")))) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
+    private static void setChildText(Element parent, String name, String text) {
+        Element child = firstChild(parent, name, null);
+        if (child == null) {
+            child = (Element) parent.appendChild(parent.getOwnerDocument().createElement(name));
+        }
+        child.setTextContent(text);
+    }
+
+    /**
+     * Resolves optimized images and classpath: URIs used by the templates, everything else goes to FOP's default
+     * resolver.
+     */
+    private class RenderResourceResolver implements ResourceResolver {
+
+        private final ResourceResolver delegate = ResourceResolverFactory.createDefaultResourceResolver();
+
+        @Override
+        public Resource getResource(URI uri) throws IOException {
+            if (PdfOptimizationDto.IMAGE_URI_SCHEME.equals(uri.getScheme())) {
+                Map<String, byte[]> images = renderImages.get();
+                byte[] image = images != null ? images.get(uri.getSchemeSpecificPart()) : null;
+                if (image == null) {
+                    throw new FileNotFoundException("Optimized image not found: " + uri);
+                }
+                return new Resource(new ByteArrayInputStream(image));
+            }
+            if ("classpath".equals(uri.getScheme())) {
+                String path = uri.getSchemeSpecificPart();
+                InputStream in = ClassUtils.getDefaultClassLoader()
+                        .getResourceAsStream(path.startsWith("/") ? path.substring(1) : path);
+                if (in == null) {
+                    throw new FileNotFoundException("Classpath resource not found: " + uri);
+                }
+                return new Resource(in);
+            }
+            return delegate.getResource(uri);
+        }
+
+        @Override
+        public OutputStream getOutputStream(URI uri) throws IOException {
+            return delegate.getOutputStream(uri);
+        }
+    }
+}
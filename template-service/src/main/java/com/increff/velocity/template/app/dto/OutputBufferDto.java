@@ -0,0 +1,145 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.BufferPoolStats;
+import com.increff.velocity.template.app.render.BudgetWriter;
+import com.increff.velocity.template.app.render.BufferPool;
+import com.increff.velocity.template.app.render.ChunkedOutputStream;
+import com.increff.velocity.template.app.render.RenderControl;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output buffers of the render path.
+ * The merged FO and the PDF are written into chunks from a shared pool instead of growing arrays. FOP reads the FO from
+ * its chunks, and the PDF is encoded to Base64 from its chunks straight into the response. The chunk size of a render
+ * is picked from a running estimate of the PDF size of its template, so small documents do not hold large chunks and
+ * large documents do not need hundreds of small ones.
+ */
+@Service
+public class OutputBufferDto {
+
+    private static final int SMALL_CHUNK_SIZE = 16 * 1024;
+    // Kept below half of the smallest G1 region so chunks are never humongous allocations
+    private static final int LARGE_CHUNK_SIZE = 256 * 1024;
+    private static final long LARGE_CHUNK_THRESHOLD = 4L * SMALL_CHUNK_SIZE;
+    private static final double SIZE_SMOOTHING = 0.2;
+    private static final int MAX_ESTIMATED_TEMPLATES = 512;
+
+    @Value("${render.buffer.direct:false}")
+    private boolean direct;
+
+    @Value("${render.buffer.max-pooled-bytes:67108864}")
+    private long maxPooledBytes;
+
+    private BufferPool pool;
+    private final Map<String, SizeEstimate> estimates = new ConcurrentHashMap<>();
+    private final SizeEstimate globalEstimate = new SizeEstimate();
+    private final AtomicLong outputs = new AtomicLong();
+    private final AtomicLong outputBytes = new AtomicLong();
+    private final AtomicLong releasedOutputs = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        pool = new BufferPool(direct, maxPooledBytes);
+    }
+
+    /**
+     * @return An empty stream sized for the output of the template. It must be passed to {@link #release} once the
+     * output has been written out.
+     */
+    public ChunkedOutputStream newStream(String templateName) {
+        long predictedBytes = predictBytes(templateName);
+        int chunkSize = predictedBytes >= LARGE_CHUNK_THRESHOLD ? LARGE_CHUNK_SIZE : SMALL_CHUNK_SIZE;
+        return new ChunkedOutputStream(pool, chunkSize);
+    }
+
+    /**
+     * @return An empty writer for the merged FO of a render. It must be passed to {@link #release(BudgetWriter)} once
+     * the PDF is laid out.
+     */
+    public BudgetWriter newFoWriter(String templateName, RenderControl control) {
+        // The FO of a template is larger than its PDF, so templates with large PDFs get large chunks for both
+        long predictedBytes = predictBytes(templateName);
+        int chunkSize = predictedBytes >= LARGE_CHUNK_THRESHOLD ? LARGE_CHUNK_SIZE : SMALL_CHUNK_SIZE;
+        return new BudgetWriter(control, pool, chunkSize);
+    }
+
+    /**
+     * Record the size of a completed output, for sizing the next outputs of the template
+     */
+    public void recordSize(String templateName, long bytes) {
+        globalEstimate.update(bytes);
+        if (templateName != null && (estimates.containsKey(templateName) || estimates.size() < MAX_ESTIMATED_TEMPLATES)) {
+            estimates.computeIfAbsent(templateName, name -> new SizeEstimate()).update(bytes);
+        }
+        outputs.incrementAndGet();
+        outputBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Return the chunks of a stream to the pool and account the bytes the stream allocated
+     */
+    public void release(ChunkedOutputStream stream) {
+        if (stream == null) {
+            return;
+        }
+        stream.release();
+        releasedOutputs.incrementAndGet();
+        allocatedBytes.addAndGet(stream.getAllocatedBytes());
+    }
+
+    /**
+     * Return the chunks of an FO writer to the pool and account the bytes it allocated to the output of its render
+     */
+    public void release(BudgetWriter writer) {
+        if (writer == null) {
+            return;
+        }
+        writer.release();
+        allocatedBytes.addAndGet(writer.getAllocatedBytes());
+    }
+
+    public long predictBytes(String templateName) {
+        SizeEstimate estimate = templateName != null ? estimates.get(templateName) : null;
+        return (estimate != null ? estimate : globalEstimate).getBytes();
+    }
+
+    public BufferPoolStats getStats() {
+        BufferPoolStats stats = new BufferPoolStats();
+        stats.setDirect(pool.isDirect());
+        stats.setPooledBytes(pool.getPooledBytes());
+        stats.setMaxPooledBytes(pool.getMaxPooledBytes());
+        stats.setChunksAllocated(pool.getChunksAllocated());
+        stats.setChunksReused(pool.getChunksReused());
+        stats.setBytesReused(pool.getBytesReused());
+        long outputCount = outputs.get();
+        long releasedCount = releasedOutputs.get();
+        stats.setOutputs(outputCount);
+        stats.setAverageOutputBytes(outputCount > 0 ? outputBytes.get() / outputCount : 0);
+        stats.setAverageAllocatedBytesPerOutput(releasedCount > 0 ? allocatedBytes.get() / releasedCount : 0);
+        return stats;
+    }
+
+    /**
+     * Exponentially smoothed output size
+     */
+    private static class SizeEstimate {
+        private double bytes;
+        private boolean initialized;
+
+        synchronized void update(long observedBytes) {
+            bytes = initialized ? bytes + SIZE_SMOOTHING * (observedBytes - bytes) : observedBytes;
+            initialized = true;
+        }
+
+        synchronized long getBytes() {
+            return (long) bytes;
+        }
+    }
+}
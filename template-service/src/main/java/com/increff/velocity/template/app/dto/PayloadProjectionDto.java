@@ -0,0 +1,536 @@
+package com.increff.velocity.template.app.dto;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.increff.velocity.template.app.model.PayloadProjection;
+import com.increff.velocity.template.app.model.RenderReport;
+import com.increff.velocity.template.app.util.HashUtil;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTSetDirective;
+import org.apache.velocity.runtime.parser.node.ASTStringLiteral;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds the render model from only the part of the payload a template reads.
+ * A static pass over the parsed template collects every $data path it references, following #foreach aliases, macro
+ * arguments and #set assignments. The payload is then read with a streaming parser that skips the subtrees no path
+ * reaches. Arrays keep all their elements so sizes and loop counts do not change. Templates whose references cannot be
+ * followed, e.g. $data passed to a tool or read with a computed key, get the full payload.
+ */
+@Service
+public class PayloadProjectionDto {
+
+    private static final String ANY = "[]";
+    // Calls that need a key of a map, e.g. $data.invoiceMetaData.getOrDefault('cgst', 0)
+    private static final List<String> KEY_METHODS = Arrays.asList("get", "getOrDefault", "containsKey");
+    // Calls that only need the number of elements. A projected array keeps all its elements, but a projected map drops
+    // the fields nothing reads, so a map they are called on is read whole.
+    private static final List<String> COUNT_METHODS = Arrays.asList("size", "isEmpty");
+    private static final List<String> DYNAMIC_DIRECTIVES = Arrays.asList("evaluate", "parse", "include");
+    private static final int MAX_PASSES = 4;
+    private static final int MAX_MACRO_DEPTH = 8;
+    private static final int MAX_CACHED_PROJECTIONS = 512;
+
+    @Autowired
+    private TemplateAstDto templateAstDto;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${render.projection.enabled:true}")
+    private boolean enabled;
+
+    private final Map<String, Projection> projections = new ConcurrentHashMap<>();
+    private ObjectReader valueReader;
+
+    @PostConstruct
+    public void init() {
+        valueReader = objectMapper.readerFor(Object.class);
+    }
+
+    /**
+     * @return The payload paths a template reads, or the reason it needs the full payload
+     */
+    public PayloadProjection getProjection(String templateName, String templateContent) {
+        return getCachedProjection(templateName, templateContent).summary;
+    }
+
+    /**
+     * Read a payload into the render model of a template
+     * @param templateName The template name
+     * @param templateContent The template source
+     * @param jsonString The payload
+     * @param report The render report, gets the parse time and the number of fields read and skipped
+     * @return The render model, with the same types a full parse gives
+     * @throws IOException If the payload is not valid JSON
+     */
+    public Object readPayload(String templateName, String templateContent, String jsonString, RenderReport report)
+            throws IOException {
+        long startTime = System.currentTimeMillis();
+        report.setPayloadChars(jsonString.length());
+        Projection projection = enabled ? getCachedProjection(templateName, templateContent) : null;
+        Object form;
+        if (projection == null || projection.root.whole) {
+            form = objectMapper.readValue(jsonString, Object.class);
+        } else {
+            try (JsonParser parser = objectMapper.getFactory().createParser(jsonString)) {
+                parser.nextToken();
+                ReadCounts counts = new ReadCounts();
+                form = readValue(parser, projection.root, counts);
+                report.setPayloadProjected(true);
+                report.setPayloadFieldsRead(counts.read);
+                report.setPayloadFieldsSkipped(counts.skipped);
+            }
+        }
+        report.setPayloadParseMillis(System.currentTimeMillis() - startTime);
+        return form;
+    }
+
+    /**
+     * Check that a payload is valid JSON without building a tree of it
+     * @throws IOException If the payload is not valid JSON
+     */
+    public void validateJson(String jsonString) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(jsonString)) {
+            while (parser.nextToken() != null) {
+                // Tokenizing the whole document finds every syntax error
+            }
+        }
+    }
+
+    private Object readValue(JsonParser parser, ProjectionNode node, ReadCounts counts) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (node.whole || (node.counted && token == JsonToken.START_OBJECT)
+                || (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY)) {
+            return valueReader.readValue(parser);
+        }
+        if (token == JsonToken.START_ARRAY) {
+            ProjectionNode element = node.children.get(ANY);
+            List<Object> list = new ArrayList<>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                list.add(readValue(parser, element != null ? element : ProjectionNode.EMPTY, counts));
+            }
+            return list;
+        }
+        ProjectionNode anyField = node.children.get(ANY);
+        Map<String, Object> map = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            ProjectionNode child = ProjectionNode.merge(node.children.get(name), anyField);
+            parser.nextToken();
+            if (child == null) {
+                parser.skipChildren();
+                counts.skipped++;
+            } else {
+                map.put(name, readValue(parser, child, counts));
+                counts.read++;
+            }
+        }
+        return map;
+    }
+
+    private Projection getCachedProjection(String templateName, String templateContent) {
+        String key = HashUtil.sha256(templateContent);
+        Projection projection = projections.get(key);
+        if (projection != null) {
+            return projection;
+        }
+        projection = analyze(templateName, templateContent);
+        if (projections.size() >= MAX_CACHED_PROJECTIONS) {
+            projections.clear();
+        }
+        projections.put(key, projection);
+        return projection;
+    }
+
+    private Projection analyze(String templateName, String templateContent) {
+        Analyzer analyzer = new Analyzer();
+        try {
+            Node ast = templateAstDto.parse(templateName, templateContent);
+            analyzer.macros.putAll(TemplateAstDto.collectMacros(ast));
+            int passes = 0;
+            // #set assignments made late in the template can be read earlier inside loops and macros, so walk again
+            // until no new path shows up
+            do {
+                analyzer.changed = false;
+                analyzer.walk(ast, new HashMap<>());
+            } while (analyzer.changed && ++passes < MAX_PASSES);
+            if (analyzer.changed) {
+                analyzer.useFullPayload("assignments did not settle after " + MAX_PASSES + " passes");
+            }
+        } catch (ParseException | RuntimeException e) {
+            analyzer.useFullPayload("template could not be analysed: " + e.getMessage());
+        }
+        if (analyzer.root.whole && analyzer.reason == null) {
+            analyzer.reason = "$" + TemplateAstDto.DATA_ROOT + " is used as a whole";
+        }
+
+        PayloadProjection summary = new PayloadProjection(templateName);
+        summary.setFullPayload(analyzer.root.whole);
+        summary.setReason(analyzer.reason);
+        List<String> paths = new ArrayList<>();
+        if (analyzer.root.whole || !analyzer.root.children.isEmpty()) {
+            analyzer.root.collectPaths(TemplateAstDto.DATA_ROOT, paths);
+        }
+        Collections.sort(paths);
+        summary.setPaths(paths);
+        return new Projection(analyzer.root, summary);
+    }
+
+    private static class Projection {
+        private final ProjectionNode root;
+        private final PayloadProjection summary;
+
+        private Projection(ProjectionNode root, PayloadProjection summary) {
+            this.root = root;
+            this.summary = summary;
+        }
+    }
+
+    /**
+     * Part of the payload a template reads. A whole node keeps its entire subtree; otherwise only the named children
+     * are kept, and "[]" stands for every element of an array or every value of a map. A counted node has size() or
+     * isEmpty() called on it, which keeps it whole if it turns out to be a map.
+     */
+    private static class ProjectionNode {
+        private static final ProjectionNode EMPTY = new ProjectionNode();
+
+        private final Map<String, ProjectionNode> children = new HashMap<>();
+        private boolean whole;
+        private boolean counted;
+
+        private static ProjectionNode merge(ProjectionNode first, ProjectionNode second) {
+            if (first == null || second == null) {
+                return first != null ? first : second;
+            }
+            ProjectionNode merged = new ProjectionNode();
+            merged.whole = first.whole || second.whole;
+            merged.counted = first.counted || second.counted;
+            merged.children.putAll(first.children);
+            for (Map.Entry<String, ProjectionNode> entry : second.children.entrySet()) {
+                merged.children.put(entry.getKey(), merge(merged.children.get(entry.getKey()), entry.getValue()));
+            }
+            return merged;
+        }
+
+        private void collectPaths(String path, List<String> paths) {
+            if (whole || children.isEmpty()) {
+                paths.add(path);
+                return;
+            }
+            if (counted) {
+                paths.add(path);
+            }
+            for (Map.Entry<String, ProjectionNode> entry : children.entrySet()) {
+                String name = entry.getKey();
+                entry.getValue().collectPaths(ANY.equals(name) ? path + ANY : path + "." + name, paths);
+            }
+        }
+    }
+
+    private static class ReadCounts {
+        private long read;
+        private long skipped;
+    }
+
+    private class Analyzer {
+        private final ProjectionNode root = new ProjectionNode();
+        private final Map<String, TemplateAstDto.MacroDefinition> macros = new HashMap<>();
+        // Paths assigned to variables with #set, global like the Velocity context. A variable keeps every path it was
+        // ever assigned, since any of them can be the one read at render time.
+        private final Map<String, Set<List<String>>> assignments = new HashMap<>();
+        private final Deque<String> expandingMacros = new ArrayDeque<>();
+        private boolean changed;
+        private String reason;
+
+        private void useFullPayload(String reason) {
+            if (this.reason == null) {
+                this.reason = reason;
+            }
+            root.whole = true;
+        }
+
+        private void walk(Node node, Map<String, Set<List<String>>> bindings) {
+            if (root.whole) {
+                return;
+            }
+            if (node instanceof ASTDirective) {
+                String name = ((ASTDirective) node).getDirectiveName();
+                if ("macro".equals(name)) {
+                    return;
+                }
+                if ("foreach".equals(name)) {
+                    walkForeach(node, bindings);
+                    return;
+                }
+                if (DYNAMIC_DIRECTIVES.contains(name)) {
+                    useFullPayload("#" + name + " renders content the analysis cannot see");
+                    return;
+                }
+                TemplateAstDto.MacroDefinition macro = macros.get(name);
+                if (macro != null) {
+                    walkMacroCall(name, macro, node, bindings);
+                    return;
+                }
+            } else if (node instanceof ASTSetDirective) {
+                walkSet(node, bindings);
+                return;
+            } else if (node instanceof ASTReference) {
+                readReference((ASTReference) node, bindings);
+            } else if (node instanceof ASTStringLiteral) {
+                walkInterpolation((ASTStringLiteral) node, bindings);
+                return;
+            }
+            for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+                walk(node.jjtGetChild(i), bindings);
+            }
+        }
+
+        private void walkForeach(Node node, Map<String, Set<List<String>>> bindings) {
+            int childCount = node.jjtGetNumChildren();
+            if (childCount < 3) {
+                return;
+            }
+            Node aliasNode = node.jjtGetChild(0);
+            Node source = node.jjtGetChild(childCount - 2);
+            Set<List<String>> sources = source instanceof ASTReference
+                    ? passReference((ASTReference) source, bindings) : Collections.emptySet();
+            if (!(source instanceof ASTReference)) {
+                walk(source, bindings);
+            }
+
+            Map<String, Set<List<String>>> loopBindings = new HashMap<>(bindings);
+            if (aliasNode instanceof ASTReference) {
+                String alias = TemplateAstDto.getRoot((ASTReference) aliasNode);
+                Set<List<String>> elements = new LinkedHashSet<>();
+                for (List<String> path : sources) {
+                    elements.add(append(path, ANY));
+                }
+                loopBindings.put(alias, elements);
+            }
+            walk(node.jjtGetChild(childCount - 1), loopBindings);
+        }
+
+        private void walkMacroCall(String name, TemplateAstDto.MacroDefinition macro, Node call, Map<String, Set<List<String>>> bindings) {
+            if (expandingMacros.size() >= MAX_MACRO_DEPTH || expandingMacros.contains(name)) {
+                // Recursive calls are not expanded again, keep everything their arguments reach
+                for (int i = 0; i < call.jjtGetNumChildren(); i++) {
+                    walk(call.jjtGetChild(i), bindings);
+                }
+                return;
+            }
+            // Macros see the variables of the caller, their parameters hide them
+            Map<String, Set<List<String>>> macroBindings = new HashMap<>(bindings);
+            for (int i = 0; i < call.jjtGetNumChildren(); i++) {
+                Node argument = call.jjtGetChild(i);
+                String parameter = i < macro.getParameters().size() ? macro.getParameters().get(i) : null;
+                if (argument instanceof ASTReference && parameter != null) {
+                    macroBindings.put(parameter, passReference((ASTReference) argument, bindings));
+                } else {
+                    walk(argument, bindings);
+                    if (parameter != null) {
+                        macroBindings.put(parameter, Collections.emptySet());
+                    }
+                }
+            }
+            expandingMacros.push(name);
+            walk(macro.getBody(), macroBindings);
+            expandingMacros.pop();
+        }
+
+        private void walkSet(Node node, Map<String, Set<List<String>>> bindings) {
+            if (node.jjtGetNumChildren() < 2 || !(node.jjtGetChild(0) instanceof ASTReference)) {
+                for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+                    walk(node.jjtGetChild(i), bindings);
+                }
+                return;
+            }
+            ASTReference target = (ASTReference) node.jjtGetChild(0);
+            Node value = node.jjtGetChild(1);
+            while (!(value instanceof ASTReference) && value.jjtGetNumChildren() == 1) {
+                value = value.jjtGetChild(0);
+            }
+            if (TemplateAstDto.getReferencePath(target).size() != 1) {
+                walk(target, bindings);
+                walk(node.jjtGetChild(1), bindings);
+                return;
+            }
+            if (value instanceof ASTReference) {
+                Set<List<String>> paths = passReference((ASTReference) value, bindings);
+                Set<List<String>> assigned = assignments.computeIfAbsent(TemplateAstDto.getRoot(target), name -> new LinkedHashSet<>());
+                if (assigned.addAll(paths)) {
+                    changed = true;
+                }
+            } else {
+                walk(node.jjtGetChild(1), bindings);
+            }
+        }
+
+        /**
+         * Parse the references in an interpolated "..." string literal, which Velocity only parses at render time
+         */
+        private void walkInterpolation(ASTStringLiteral node, Map<String, Set<List<String>>> bindings) {
+            // The literal token, with its quotes
+            String literal = node.getFirstToken().image;
+            if (literal.length() < 2 || literal.charAt(0) != '"' || (literal.indexOf('$') < 0 && literal.indexOf('#') < 0)) {
+                return;
+            }
+            try {
+                walk(templateAstDto.parse(null, literal.substring(1, literal.length() - 1)), bindings);
+            } catch (ParseException e) {
+                useFullPayload("string literal could not be analysed: " + literal);
+            }
+        }
+
+        /**
+         * A reference whose value is rendered or used in an expression: keep everything below it
+         */
+        private void readReference(ASTReference reference, Map<String, Set<List<String>>> bindings) {
+            for (List<String> path : getDataPaths(reference, bindings, true)) {
+                mark(path, true);
+            }
+        }
+
+        /**
+         * A reference passed on to a #foreach alias, a macro parameter or a #set variable: keep only what is read
+         * through the alias later. References that are not plain property paths are read here instead.
+         * @return The data paths the alias refers to
+         */
+        private Set<List<String>> passReference(ASTReference reference, Map<String, Set<List<String>>> bindings) {
+            if (!TemplateAstDto.isPropertyPath(reference)) {
+                walk(reference, bindings);
+                return getDataPaths(reference, bindings, false);
+            }
+            Set<List<String>> paths = getDataPaths(reference, bindings, false);
+            for (List<String> path : paths) {
+                mark(path, false);
+            }
+            return paths;
+        }
+
+        private Set<List<String>> getDataPaths(ASTReference reference, Map<String, Set<List<String>>> bindings,
+                                               boolean withCall) {
+            List<String> path = TemplateAstDto.getReferencePath(reference);
+            String[] call = TemplateAstDto.isPropertyPath(reference) ? null : getFirstCall(reference.literal());
+            Set<List<String>> resolved = new LinkedHashSet<>();
+            String root = path.get(0);
+            Set<List<String>> bound = bindings.containsKey(root) ? bindings.get(root) : assignments.get(root);
+            if (bound == null) {
+                if (TemplateAstDto.DATA_ROOT.equals(root)) {
+                    resolved.add(path);
+                }
+            } else {
+                for (List<String> prefix : bound) {
+                    List<String> full = new ArrayList<>(prefix);
+                    full.addAll(path.subList(1, path.size()));
+                    resolved.add(full);
+                }
+            }
+            if (!withCall || call == null) {
+                return resolved;
+            }
+            Set<List<String>> withKeys = new LinkedHashSet<>();
+            for (List<String> full : resolved) {
+                if (KEY_METHODS.contains(call[0]) && call[1] != null) {
+                    withKeys.add(append(full, call[1]));
+                } else if (COUNT_METHODS.contains(call[0])) {
+                    ProjectionNode node = mark(full, false);
+                    if (node != null && !node.counted) {
+                        node.counted = true;
+                        changed = true;
+                    }
+                } else {
+                    withKeys.add(full);
+                }
+            }
+            return withKeys;
+        }
+
+        /**
+         * @return The node of the path, or null if the path is not under $data or a whole node already keeps it
+         */
+        private ProjectionNode mark(List<String> path, boolean whole) {
+            if (!TemplateAstDto.DATA_ROOT.equals(path.get(0))) {
+                return null;
+            }
+            ProjectionNode node = root;
+            for (String property : path.subList(1, path.size())) {
+                if (node.whole) {
+                    return null;
+                }
+                ProjectionNode child = node.children.get(property);
+                if (child == null) {
+                    child = new ProjectionNode();
+                    node.children.put(property, child);
+                    changed = true;
+                }
+                node = child;
+            }
+            if (whole && !node.whole) {
+                node.whole = true;
+                node.children.clear();
+                changed = true;
+            }
+            return node;
+        }
+
+        /**
+         * Find the method call that ends the property path of a reference literal
+         * @return The method name and its first argument if that is a string literal, or null if there is no call
+         */
+        private String[] getFirstCall(String literal) {
+            for (int open = literal.indexOf('('); open >= 0; open = literal.indexOf('(', open + 1)) {
+                int start = open;
+                while (start > 0 && Character.isJavaIdentifierPart(literal.charAt(start - 1))) {
+                    start--;
+                }
+                String name = literal.substring(start, open);
+                int end = open + 1;
+                while (end < literal.length() && literal.charAt(end) != ',' && literal.charAt(end) != ')') {
+                    end++;
+                }
+                String argument = literal.substring(open + 1, end).trim();
+                String key = null;
+                if (argument.length() >= 2 && (argument.charAt(0) == '"' || argument.charAt(0) == '\'')
+                        && argument.charAt(argument.length() - 1) == argument.charAt(0)) {
+                    key = argument.substring(1, argument.length() - 1);
+                }
+                // get() with a literal is part of the property path
+                boolean literalGet = "get".equals(name) && (key != null
+                        || (!argument.isEmpty() && argument.chars().allMatch(Character::isDigit)));
+                if (!literalGet) {
+                    return new String[]{name, key};
+                }
+            }
+            return null;
+        }
+
+        private List<String> append(List<String> path, String property) {
+            List<String> appended = new ArrayList<>(path);
+            appended.add(property);
+            return appended;
+        }
+    }
+}
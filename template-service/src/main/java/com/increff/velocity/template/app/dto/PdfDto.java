@@ -1,12 +1,19 @@
 package com.increff.velocity.template.app.dto;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
-import com.increff.commons.template.Resources;
-import com.increff.commons.template.util.FopUtil;
-import com.increff.commons.template.util.Utils;
-import com.increff.commons.template.util.VelocityUtil;
+import com.increff.velocity.template.app.model.PdfOptimizationProfile;
+import com.increff.velocity.template.app.model.RenderReport;
+import com.increff.velocity.template.app.model.TemplateCostProfile;
+import com.increff.velocity.template.app.render.BudgetWriter;
+import com.increff.velocity.template.app.render.ChunkedOutputStream;
+import com.increff.velocity.template.app.render.GuardedModel;
+import com.increff.velocity.template.app.render.RenderAbortedException;
+import com.increff.velocity.template.app.render.RenderBudgetExceededException;
+import com.increff.velocity.template.app.render.RenderContext;
+import com.increff.velocity.template.app.render.RenderControl;
+import com.increff.velocity.template.app.render.RenderDateTool;
+import com.increff.velocity.template.app.render.TextEdit;
 import com.nextscm.commons.spring.common.ApiException;
 import com.nextscm.commons.spring.common.ApiStatus;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,39 +21,60 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import org.xml.sax.SAXException;
 
-import org.apache.fop.configuration.ConfigurationException;
 import javax.xml.transform.TransformerException;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
+import org.apache.velocity.exception.VelocityException;
 import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.tools.generic.MathTool;
 
 @Service
 public class PdfDto {
 
     @Autowired
-    private ObjectMapper objectMapper;
+    private PdfOptimizationDto pdfOptimizationDto;
 
-    public byte[] renderPdf(MultipartFile file, String jsonString) throws ApiException, JsonProcessingException {
+    @Autowired
+    private FopDto fopDto;
+
+    @Autowired
+    private RenderReportDto renderReportDto;
+
+    @Autowired
+    private TemplateCostDto templateCostDto;
+
+    @Autowired
+    private RenderAdmissionDto renderAdmissionDto;
+
+    @Autowired
+    private PreviewSessionDto previewSessionDto;
+
+    @Autowired
+    private PayloadProjectionDto payloadProjectionDto;
+
+    @Autowired
+    private RenderBudgetDto renderBudgetDto;
+
+    @Autowired
+    private OutputBufferDto outputBufferDto;
+
+    @Autowired
+    private TemplateAstDto templateAstDto;
+
+    /**
+     * Render an uploaded template into a PDF
+     * @return The PDF in pooled buffers, which the caller must release with {@link OutputBufferDto#release}
+     */
+    public ChunkedOutputStream renderPdf(MultipartFile file, String jsonString, String previewKey) throws ApiException, JsonProcessingException {
         System.out.println("=== PDF RENDER FLOW START ===");
         System.out.println("Input JSON string length: " + (jsonString != null ? jsonString.length() : "null"));
-        System.out.println("Input JSON string: " + jsonString);
         System.out.println("File name: " + (file != null ? file.getOriginalFilename() : "null"));
         System.out.println("File size: " + (file != null ? file.getSize() : "null"));
         
-        Object form = convertToObject(jsonString);
-        System.out.println("Converted form object type: " + (form != null ? form.getClass().getName() : "null"));
-        System.out.println("Converted form object: " + form);
-        
-        convertDateFields(form);
-        System.out.println("After date conversion, form object: " + form);
-        
-        String timeZoneStr = "Asia/Kolkata";
-        System.out.println("Using timezone: " + timeZoneStr);
-        
+        // The template is read first, it decides which part of the payload is parsed
         String templateResource = null;
         try {
             templateResource = new String(file.getBytes(), StandardCharsets.UTF_8);
@@ -57,10 +85,18 @@ public class PdfDto {
             System.out.println("ERROR reading file: " + e.getMessage());
             throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Error while reading the file, message: " + e.getMessage());
         }
+        
+        RenderReport report = new RenderReport(file.getOriginalFilename());
+        Object form = convertToObject(jsonString, templateResource, report);
+        convertDateFields(form);
+        
+        String timeZoneStr = "Asia/Kolkata";
+        System.out.println("Using timezone: " + timeZoneStr);
+        
         try {
             System.out.println("Calling getPdfFromVm...");
-            byte[] result = getPdfFromVm(form, templateResource, timeZoneStr);
-            System.out.println("PDF generation successful, result size: " + (result != null ? result.length : "null"));
+            ChunkedOutputStream result = render(report, form, templateResource, timeZoneStr, previewKey);
+            System.out.println("PDF generation successful, result size: " + (result != null ? result.size() : "null"));
             System.out.println("=== PDF RENDER FLOW END ===");
             return result;
         } catch (ApiException e) {
@@ -68,23 +104,25 @@ public class PdfDto {
             throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Error while generating the PDF, message: " + e.getMessage());
         }
     }
-    
-    public byte[] renderPdfFromString(String templateContent, String jsonString) throws ApiException, JsonProcessingException {
+
+    /**
+     * Render template content into a PDF
+     * @return The PDF in pooled buffers, which the caller must release with {@link OutputBufferDto#release}
+     */
+    public ChunkedOutputStream renderPdfFromString(String templateName, String templateContent, String jsonString, String previewKey) throws ApiException, JsonProcessingException {
         System.out.println("=== PDF RENDER FROM STRING FLOW START ===");
         System.out.println("Template content length: " + (templateContent != null ? templateContent.length() : "null"));
         System.out.println("Template content (first 200 chars): " + 
             (templateContent != null ? templateContent.substring(0, Math.min(200, templateContent.length())) : "null"));
-        System.out.println("JSON string: " + jsonString);
-        
-        Object form = convertToObject(jsonString);
-        System.out.println("Converted form object: " + form);
+        System.out.println("JSON string length: " + (jsonString != null ? jsonString.length() : "null"));
         
+        RenderReport report = new RenderReport(templateName);
+        Object form = convertToObject(jsonString, templateContent, report);
         convertDateFields(form);
-        System.out.println("After date conversion: " + form);
         
         String timeZoneStr = "Asia/Kolkata";
         try {
-            byte[] result = getPdfFromVm(form, templateContent, timeZoneStr);
+            ChunkedOutputStream result = render(report, form, templateContent, timeZoneStr, previewKey);
             System.out.println("=== PDF RENDER FROM STRING FLOW END ===");
             return result;
         } catch (ApiException e) {
@@ -93,65 +131,228 @@ public class PdfDto {
         }
     }
 
-    public byte[] getPdfFromVm(Object form, String templateResource, String timeZoneStr) throws ApiException {
-        VelocityUtil.setTimezone(timeZoneStr);
-        String fopTemplate = null;
+    /**
+     * Render a template into a PDF
+     * @param previewKey The preview key of the render. A newer render with the same key cancels this one. Null for
+     * renders that are never superseded.
+     */
+    private ChunkedOutputStream render(RenderReport report, Object form, String templateResource, String timeZoneStr,
+                          String previewKey) throws ApiException {
+        String templateName = report.getTemplateName();
+        TemplateCostProfile costProfile = templateCostDto.getProfile(templateName, templateResource);
+        double costUnits = templateCostDto.estimateUnits(costProfile, form);
+        long predictedMillis = templateCostDto.predictMillis(costProfile, costUnits);
+        report.setCostUnits(costUnits);
+        report.setPredictedMillis(predictedMillis);
+
+        RenderControl control = previewSessionDto.begin(previewKey);
+        boolean admitted = false;
+        long queueStartTime = System.currentTimeMillis();
+        ChunkedOutputStream pdf;
+        try (RenderAdmissionDto.Admission admission = renderAdmissionDto.admit(templateName, predictedMillis, control)) {
+            admitted = true;
+            report.setLane(admission.getLaneName());
+            report.setQueueMillis(System.currentTimeMillis() - queueStartTime);
+            control.startBudget(renderBudgetDto.getBudget(templateName));
+            pdf = mergeAndLayout(form, templateResource, timeZoneStr, report, control);
+            // A cancellation that arrives after this point no longer affects the render
+            if (!control.complete()) {
+                outputBufferDto.release(pdf);
+                throw new RenderAbortedException(control.getCancelReason());
+            }
+        } catch (ApiException e) {
+            // A render cancelled while queued fails admission with an interrupt
+            if (control.isCancelled()) {
+                throw new ApiException(ApiStatus.UNKNOWN_ERROR, control.getCancelReason());
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            throw toApiException(e, report, control, false);
+        } finally {
+            report.setLoopIterations(control.getLoopIterations());
+            previewSessionDto.end(control, predictedMillis, admitted);
+        }
+        // Only production renders train the estimates, dry runs render sample data
+        templateCostDto.recordObservation(costProfile, costUnits, report.getTotalMillis());
+        outputBufferDto.recordSize(templateName, pdf.size());
+        renderReportDto.addReport(report);
+        return pdf;
+    }
+
+    /**
+     * Render a template without recording it as production traffic, to validate it and measure it before it is saved.
+     * The render still goes through admission so uploads cannot starve live renders, but it does not train the cost
+     * model or the output size estimates.
+     * @param templateName The template name
+     * @param templateContent The template source
+     * @param jsonString The sample data
+     * @return The report of the render
+     * @throws ApiException If the template does not merge or the merged FO does not lay out
+     */
+    public RenderReport dryRun(String templateName, String templateContent, String jsonString)
+            throws ApiException, JsonProcessingException {
+        RenderReport report = new RenderReport(templateName);
+        Object form = convertToObject(jsonString, templateContent, report);
+        convertDateFields(form);
+        TemplateCostProfile costProfile = templateCostDto.getProfile(templateName, templateContent);
+        double costUnits = templateCostDto.estimateUnits(costProfile, form);
+        long predictedMillis = templateCostDto.predictMillis(costProfile, costUnits);
+        report.setCostUnits(costUnits);
+        report.setPredictedMillis(predictedMillis);
+
+        RenderControl control = new RenderControl(null);
+        long queueStartTime = System.currentTimeMillis();
+        try (RenderAdmissionDto.Admission admission = renderAdmissionDto.admit(templateName, predictedMillis, control)) {
+            report.setLane(admission.getLaneName());
+            report.setQueueMillis(System.currentTimeMillis() - queueStartTime);
+            control.startBudget(renderBudgetDto.getBudget(templateName));
+            outputBufferDto.release(mergeAndLayout(form, templateContent, "Asia/Kolkata", report, control));
+        } catch (RuntimeException e) {
+            throw toApiException(e, report, control, true);
+        } finally {
+            report.setLoopIterations(control.getLoopIterations());
+            control.finish();
+        }
+        return report;
+    }
+
+    /**
+     * Turn an aborted render into an error for the caller. Budget violations of production renders are counted and
+     * reported; dry runs only fill in the report of the caller.
+     * @throws RuntimeException The exception itself if the render failed for another reason
+     */
+    private ApiException toApiException(RuntimeException e, RenderReport report, RenderControl control, boolean dryRun) {
+        RenderAbortedException aborted = RenderAbortedException.find(e);
+        if (aborted == null) {
+            throw e;
+        }
+        if (aborted instanceof RenderBudgetExceededException) {
+            report.setBudgetExceeded(((RenderBudgetExceededException) aborted).getBudget());
+            report.setLoopIterations(control.getLoopIterations());
+            report.setTotalMillis(control.getElapsedMillis());
+            if (!dryRun) {
+                renderBudgetDto.recordViolation(report.getTemplateName(), (RenderBudgetExceededException) aborted);
+                renderReportDto.addReport(report);
+            }
+        }
+        return new ApiException(ApiStatus.UNKNOWN_ERROR, aborted.getMessage());
+    }
+
+    private ChunkedOutputStream mergeAndLayout(Object form, String templateResource, String timeZoneStr, RenderReport report,
+                                  RenderControl control) throws ApiException {
+        // The merged FO stays in pooled chunks until FOP has read it
+        BudgetWriter fo = outputBufferDto.newFoWriter(report.getTemplateName(), control);
+        try {
+            return mergeAndLayout(form, templateResource, timeZoneStr, report, control, fo);
+        } finally {
+            outputBufferDto.release(fo);
+        }
+    }
+
+    private ChunkedOutputStream mergeAndLayout(Object form, String templateResource, String timeZoneStr, RenderReport report,
+                                  RenderControl control, BudgetWriter fo) throws ApiException {
+        String templateName = report.getTemplateName();
+        long startTime = System.currentTimeMillis();
         try {
             // Debug: Print the form data
             System.out.println("=== DEBUG: PDF Generation ===");
-            System.out.println("Form data type: " + (form != null ? form.getClass().getName() : "null"));
-            System.out.println("Form data: " + form);
+            System.out.println("Form data: " + describe(form));
             
-            fopTemplate = VelocityUtil.processString(form, templateResource);
-            
-            // Debug: Print the processed template (first 500 chars)
-            System.out.println("Processed template (first 500 chars): " + 
-                (fopTemplate != null ? fopTemplate.substring(0, Math.min(500, fopTemplate.length())) : "null"));
-            
-            // Debug: Check for Arabic characters in the template
-            if (fopTemplate != null && fopTemplate.contains("حسين")) {
-                System.out.println("Arabic text found in template: حسين");
-            } else {
-                System.out.println("No Arabic text found in template");
-            }
-            
-            // Debug: Check for Arabic characters in the form data
-            if (form != null && form.toString().contains("حسين")) {
-                System.out.println("Arabic text found in form data: حسين");
-            } else {
-                System.out.println("No Arabic text found in form data");
-            }
+            // The writer enforces the FO size and time budgets while the merge runs, loops count iterations
+            templateAstDto.getTemplate(templateName, templateResource)
+                    .merge(newContext(form, timeZoneStr, control), fo);
             
+            System.out.println("Processed template length: " + fo.length());
             System.out.println("=== END DEBUG ===");
         }
         catch (ParseException e) {
             throw new ApiException(ApiStatus.UNKNOWN_ERROR,"Error while processing template, message: " + e.getMessage());
         }
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        catch (VelocityException e) {
+            // Velocity wraps an abort thrown from a model access or a loop in its own exceptions
+            RenderAbortedException aborted = RenderAbortedException.find(e);
+            if (aborted != null) {
+                throw aborted;
+            }
+            throw new ApiException(ApiStatus.UNKNOWN_ERROR,"Error while processing template, message: " + e.getMessage());
+        }
+        report.setMergeMillis(System.currentTimeMillis() - startTime);
+        report.setFoChars(fo.length());
+
+        PdfOptimizationProfile profile = pdfOptimizationDto.getProfile(templateName);
+        // The optimized images of this render, dropped with it once the PDF is written
+        Map<String, byte[]> images = new HashMap<>();
+        List<TextEdit> edits = pdfOptimizationDto.optimizeImages(fo, profile, report, images, control);
+        control.checkpoint();
+
+        long layoutStartTime = System.currentTimeMillis();
+        ChunkedOutputStream pdf = outputBufferDto.newStream(templateName);
+        boolean completed = false;
         try{
-            FopUtil.convertToPDF(Resources.getResource(Resources.FOP_DATA_RESOURCE), Utils.toStream(fopTemplate), byteArrayOutputStream);
-        } catch (TransformerException | SAXException | IOException | ConfigurationException e ) {
+            // The rewritten image tags replace the original ones as FOP reads the chunks
+            int pageCount = fopDto.convertToPdf(fo.newReader(edits),
+                    profile.isEnabled() && profile.isCompressObjectStreams(), pdf, control, images);
+            report.setPageCount(pageCount);
+            completed = true;
+        } catch (TransformerException | SAXException | IOException e ) {
+            // FOP wraps an abort at a page boundary in its own exceptions
+            RenderAbortedException aborted = RenderAbortedException.find(e);
+            if (aborted != null) {
+                throw aborted;
+            }
             throw new ApiException(ApiStatus.UNKNOWN_ERROR,"Error while creating pdf. "+e.getMessage());
+        } finally {
+            if (!completed) {
+                outputBufferDto.release(pdf);
+            }
         }
-        return byteArrayOutputStream.toByteArray();
+        report.setLayoutMillis(System.currentTimeMillis() - layoutStartTime);
+        report.setTotalMillis(System.currentTimeMillis() - startTime);
+        report.setPdfBytes(pdf.size());
+        return pdf;
+    }
+
+    static RenderContext newContext(Object form, String timeZoneStr, RenderControl control) {
+        RenderContext context = new RenderContext(control);
+        context.put(TemplateAstDto.DATA_ROOT, GuardedModel.wrap(form, control));
+        context.put("math", new MathTool());
+        context.put("date", new RenderDateTool(TimeZone.getTimeZone(timeZoneStr)));
+        return context;
     }
 
-    private Object convertToObject(String jsonString) throws JsonProcessingException {
+    private Object convertToObject(String jsonString, String templateResource, RenderReport report)
+            throws ApiException, JsonProcessingException {
         System.out.println("=== CONVERT TO OBJECT ===");
-        System.out.println("Input JSON string: " + jsonString);
-        Object result = objectMapper.readValue(jsonString, Object.class);
-        System.out.println("Converted object type: " + (result != null ? result.getClass().getName() : "null"));
-        System.out.println("Converted object: " + result);
+        System.out.println("Input JSON string length: " + (jsonString != null ? jsonString.length() : "null"));
+        Object result;
+        try {
+            // Only the fields the template references are materialized
+            result = payloadProjectionDto.readPayload(report.getTemplateName(), templateResource, jsonString, report);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Error while reading the JSON, message: " + e.getMessage());
+        }
+        System.out.println("Converted object: " + describe(result));
         System.out.println("=== END CONVERT TO OBJECT ===");
         return result;
     }
 
     public static void convertDateFields(Object jsonObject) {
-        System.out.println("=== CONVERT DATE FIELDS START ===");
-        System.out.println("Input object: " + jsonObject);
         convertDateFieldsRecursive(jsonObject);
-        System.out.println("After date conversion: " + jsonObject);
-        System.out.println("=== CONVERT DATE FIELDS END ===");
+    }
+
+    /**
+     * Describe a payload for the logs by its shape, payloads can be large and hold customer data
+     */
+    private static String describe(Object value) {
+        if (value instanceof Map<?, ?>) {
+            return "object with " + ((Map<?, ?>) value).size() + " fields";
+        }
+        if (value instanceof Collection<?>) {
+            return "array with " + ((Collection<?>) value).size() + " elements";
+        }
+        return value != null ? value.getClass().getSimpleName() : "null";
     }
 
     private static void convertDateFieldsRecursive(Object obj) {
@@ -0,0 +1,490 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.PdfOptimizationProfile;
+import com.increff.velocity.template.app.model.RenderReport;
+import com.increff.velocity.template.app.render.RenderControl;
+import com.increff.velocity.template.app.render.TextEdit;
+import com.increff.velocity.template.app.util.HashUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.util.ClassUtils;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Output optimization stage that runs on the merged FO before layout.
+ * Images referenced from fo:external-graphic are fetched once per render, downsampled to the target DPI of the
+ * size they are drawn at, recompressed, and registered under a content-addressed URI so identical images are
+ * embedded only once. Only JPEG sources are recompressed lossily; other sources stay lossless, and line art such as
+ * QR codes and barcodes is never resampled. An external-graphic with optimize="false" is embedded as is.
+ */
+@Service
+public class PdfOptimizationDto {
+
+    public static final String IMAGE_URI_SCHEME = "pdfopt";
+    private static final String PROPERTY_PREFIX = "pdf.optimize";
+    private static final long MAX_CACHED_IMAGE_BYTES = 32L * 1024 * 1024;
+    private static final int MAX_IMAGE_BYTES = 10 * 1024 * 1024;
+    // Images with at most this many colors are line art (QR codes, barcodes, signatures) and are never resampled
+    private static final int LINE_ART_MAX_COLORS = 16;
+    // Cached for images that do not get smaller, so they are embedded as fetched without being decoded again
+    private static final byte[] NOT_SHRUNK = new byte[0];
+    // Cached for fetched content that does not decode as an image, so its tag is left for FOP without decoding again
+    private static final byte[] NOT_AN_IMAGE = new byte[0];
+    // Id prefix for images that could not be fetched. No image is registered under it, so FOP reports the image missing
+    // right away instead of fetching it again and waiting for another timeout.
+    private static final String UNAVAILABLE_ID_PREFIX = "unavailable-";
+    private static final Pattern ENTITY = Pattern.compile("&(#[0-9]+|#x[0-9a-fA-F]+|amp|lt|gt|quot|apos);");
+    private static final int FETCH_TIMEOUT_MILLIS = 5000;
+    private static final double POINTS_PER_INCH = 72.0;
+
+    private static final Pattern EXTERNAL_GRAPHIC = Pattern.compile("<fo:external-graphic\\b[^>]*>");
+    private static final Pattern SRC_ATTRIBUTE = Pattern.compile("\\ssrc\\s*=\\s*\"([^\"]*)\"");
+    private static final Pattern WIDTH_ATTRIBUTE = Pattern.compile("\\scontent-width\\s*=\\s*\"([^\"]*)\"");
+    private static final Pattern HEIGHT_ATTRIBUTE = Pattern.compile("\\scontent-height\\s*=\\s*\"([^\"]*)\"");
+    private static final Pattern OPTIMIZE_ATTRIBUTE = Pattern.compile("\\soptimize\\s*=\\s*\"([^\"]*)\"");
+    private static final Pattern LENGTH = Pattern.compile("\\s*([0-9]*\\.?[0-9]+)\\s*(mm|cm|in|pt|pc|px)\\s*");
+
+    @Autowired
+    private TemplatePropertiesDto templatePropertiesDto;
+
+    // Optimized images by content-addressed id, shared across renders so a logo is resampled once. Renders never
+    // read from it during layout, they get their own copy of the images they use.
+    private final Map<String, byte[]> optimizedImages = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedImageBytes;
+
+    /**
+     * Resolve the optimization settings for a template.
+     * Every option can be set globally as "pdf.optimize.&lt;option&gt;" or per template as
+     * "pdf.optimize.&lt;template name without .fo.vm&gt;.&lt;option&gt;".
+     * @param templateName The template being rendered, may be null for ad-hoc uploads
+     * @return The resolved profile
+     */
+    public PdfOptimizationProfile getProfile(String templateName) {
+        return new PdfOptimizationProfile(
+                templatePropertiesDto.getBoolean(PROPERTY_PREFIX, templateName, "enabled", true),
+                templatePropertiesDto.getInt(PROPERTY_PREFIX, templateName, "target-dpi", 150),
+                (float) templatePropertiesDto.getDouble(PROPERTY_PREFIX, templateName, "jpeg-quality", 0.8),
+                templatePropertiesDto.getBoolean(PROPERTY_PREFIX, templateName, "dedupe-images", true),
+                templatePropertiesDto.getBoolean(PROPERTY_PREFIX, templateName, "object-streams", true)
+        );
+    }
+
+    /**
+     * Rewrite the images of a merged FO document to optimized, deduplicated copies.
+     * Content that does not decode as an image is left for FOP to resolve as before. Images that cannot be fetched are
+     * reported missing to FOP, which would otherwise fetch them again and wait for a second timeout.
+     * The document is not copied: only the rewritten tags are returned, and they replace the original tags while FOP
+     * reads the document.
+     * @param fo The merged FO document
+     * @param profile The optimization settings to apply
+     * @param report The report to record image counts and sizes in
+     * @param images Receives the optimized images of this render by id, for FOP to resolve during layout
+     * @param control The control of the render, checked before every image is fetched
+     * @return The rewritten external-graphic tags, ordered by position
+     */
+    public List<TextEdit> optimizeImages(CharSequence fo, PdfOptimizationProfile profile, RenderReport report,
+                                         Map<String, byte[]> images, RenderControl control) {
+        long start = System.currentTimeMillis();
+        report.setOptimized(profile.isEnabled());
+        List<TextEdit> edits = new ArrayList<>();
+        // Per render: image reference -> optimized id, and optimized id -> first source that produced it
+        Map<String, String> idsByReference = new HashMap<>();
+        Map<String, String> sourcesById = new HashMap<>();
+        Matcher graphicMatcher = EXTERNAL_GRAPHIC.matcher(fo);
+        while (graphicMatcher.find()) {
+            String original = graphicMatcher.group();
+            String tag = original;
+            Matcher optimizeMatcher = OPTIMIZE_ATTRIBUTE.matcher(tag);
+            boolean optimize = true;
+            if (optimizeMatcher.find()) {
+                // The attribute is only read here, FOP does not know it
+                optimize = !"false".equalsIgnoreCase(optimizeMatcher.group(1).trim());
+                tag = OPTIMIZE_ATTRIBUTE.matcher(tag).replaceAll("");
+            }
+            if (optimize && profile.isEnabled()) {
+                control.checkpoint();
+                tag = rewriteImage(tag, profile, report, images, idsByReference, sourcesById);
+            }
+            if (!tag.equals(original)) {
+                edits.add(new TextEdit(graphicMatcher.start(), graphicMatcher.end(), tag));
+            }
+        }
+        report.setOptimizeMillis(System.currentTimeMillis() - start);
+        return edits;
+    }
+
+    /**
+     * @return The external-graphic tag pointing at the optimized image, or the tag as it was if the image is skipped
+     */
+    private String rewriteImage(String tag, PdfOptimizationProfile profile, RenderReport report,
+                                Map<String, byte[]> images, Map<String, String> idsByReference,
+                                Map<String, String> sourcesById) {
+        Matcher srcMatcher = SRC_ATTRIBUTE.matcher(tag);
+        if (!srcMatcher.find()) {
+            return tag;
+        }
+        // The attribute holds XML text, "&amp;" in a query string is a plain "&" in the URL
+        String source = unwrapUrl(unescapeXml(srcMatcher.group(1)));
+        if (source.isEmpty() || source.startsWith(IMAGE_URI_SCHEME + ":") || source.startsWith("data:")) {
+            return tag;
+        }
+        report.setImagesFound(report.getImagesFound() + 1);
+        double widthInches = toInches(attribute(tag, WIDTH_ATTRIBUTE));
+        double heightInches = toInches(attribute(tag, HEIGHT_ATTRIBUTE));
+
+        String reference = source + "|" + widthInches + "|" + heightInches;
+        String id = idsByReference.get(reference);
+        if (id == null) {
+            id = optimizeImage(source, widthInches, heightInches, profile, report, images);
+            // An empty id keeps later tags with the same reference from fetching it again
+            idsByReference.put(reference, id != null ? id : "");
+            if (id == null) {
+                return tag;
+            }
+            String previousSource = sourcesById.putIfAbsent(id, source);
+            if (previousSource != null && !previousSource.equals(source)) {
+                report.setImagesDeduplicated(report.getImagesDeduplicated() + 1);
+            }
+        } else if (id.isEmpty()) {
+            return tag;
+        } else {
+            report.setImagesDeduplicated(report.getImagesDeduplicated() + 1);
+        }
+        return tag.substring(0, srcMatcher.start(1)) + "url('" + IMAGE_URI_SCHEME + ":" + id + "')"
+                + tag.substring(srcMatcher.end(1));
+    }
+
+
+    private byte[] getCachedImage(String id) {
+        synchronized (optimizedImages) {
+            return optimizedImages.get(id);
+        }
+    }
+
+    private void cacheImage(String id, byte[] image) {
+        synchronized (optimizedImages) {
+            byte[] previous = optimizedImages.put(id, image);
+            cachedImageBytes += image.length - (previous != null ? previous.length : 0);
+            Iterator<byte[]> eldest = optimizedImages.values().iterator();
+            while (cachedImageBytes > MAX_CACHED_IMAGE_BYTES && eldest.hasNext()) {
+                cachedImageBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The id of the optimized image, or null if the tag is to be left for FOP to resolve
+     */
+    private String optimizeImage(String source, double widthInches, double heightInches,
+                                 PdfOptimizationProfile profile, RenderReport report, Map<String, byte[]> images) {
+        byte[] original;
+        try {
+            original = fetchImage(source);
+        } catch (ImageTooLargeException e) {
+            System.out.println("Image optimization skipped, " + source + ": " + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            System.out.println("Image could not be fetched, rendering without it: " + source + ": " + e.getMessage());
+            return UNAVAILABLE_ID_PREFIX + HashUtil.sha256(source);
+        }
+
+        String contentHash = HashUtil.sha256(original);
+        String id = (profile.isDedupeImages() ? contentHash : HashUtil.sha256(source + contentHash))
+                + "-" + profile.getTargetDpi() + "-" + Math.round(profile.getJpegQuality() * 100)
+                + "-" + Math.round(widthInches * 1000) + "x" + Math.round(heightInches * 1000);
+        byte[] optimized = getCachedImage(id);
+        if (optimized == null) {
+            optimized = downsample(original, widthInches, heightInches, profile);
+            if (optimized == null) {
+                cacheImage(id, NOT_AN_IMAGE);
+            } else {
+                cacheImage(id, optimized.length < original.length ? optimized : NOT_SHRUNK);
+            }
+        } else if (optimized == NOT_SHRUNK) {
+            optimized = original;
+        } else if (optimized == NOT_AN_IMAGE) {
+            optimized = null;
+        }
+        if (optimized == null) {
+            // An error page or a format ImageIO does not read (e.g. SVG), FOP resolves the original reference
+            System.out.println("Image optimization skipped, content is not a raster image: " + source);
+            return null;
+        }
+        images.put(id, optimized);
+        if (optimized.length < original.length) {
+            report.setImagesOptimized(report.getImagesOptimized() + 1);
+        }
+        report.setImageBytesBefore(report.getImageBytesBefore() + original.length);
+        report.setImageBytesAfter(report.getImageBytesAfter() + optimized.length);
+        return id;
+    }
+
+    /**
+     * @return The image downsampled and recompressed, the original if that is not smaller, or null if the bytes do not
+     * decode as an image
+     */
+    private byte[] downsample(byte[] original, double widthInches, double heightInches, PdfOptimizationProfile profile) {
+        try {
+            String format = getFormatName(original);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(original));
+            if (image == null) {
+                return null;
+            }
+            boolean lossy = "jpeg".equalsIgnoreCase(format);
+            // Resampling blurs the modules of QR codes and barcodes, keep their pixels as they are
+            if (isLineArt(image)) {
+                return lossy ? original : smallest(original, writePng(image));
+            }
+            // Images without a drawn size are laid out at their intrinsic size, so only resample sized images
+            double widthScale = widthInches * profile.getTargetDpi() / image.getWidth();
+            double heightScale = heightInches * profile.getTargetDpi() / image.getHeight();
+            double scale = 1.0;
+            if (widthInches > 0 && heightInches > 0) {
+                // The image may be stretched to both sizes, keep enough pixels for the larger one
+                scale = Math.min(1.0, Math.max(widthScale, heightScale));
+            } else if (widthInches > 0) {
+                scale = Math.min(1.0, widthScale);
+            } else if (heightInches > 0) {
+                scale = Math.min(1.0, heightScale);
+            }
+
+            boolean hasAlpha = image.getColorModel().hasAlpha();
+            BufferedImage target = image;
+            if (scale < 1.0) {
+                int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+                int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+                target = new BufferedImage(width, height, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+                Graphics2D graphics = target.createGraphics();
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(image, 0, 0, width, height, null);
+                graphics.dispose();
+            } else if (!lossy) {
+                // Nothing to resample and the source is already compressed losslessly
+                return original;
+            } else if (!hasAlpha && image.getType() != BufferedImage.TYPE_INT_RGB) {
+                target = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                Graphics2D graphics = target.createGraphics();
+                graphics.drawImage(image, 0, 0, null);
+                graphics.dispose();
+            }
+
+            return smallest(original, lossy && !hasAlpha ? writeJpeg(target, profile.getJpegQuality()) : writePng(target));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Image optimization skipped, could not decode image: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static byte[] smallest(byte[] original, byte[] recompressed) {
+        return recompressed != null && recompressed.length < original.length ? recompressed : original;
+    }
+
+    /**
+     * @return The ImageIO format name of an encoded image, e.g. "png" or "JPEG", or null if no reader knows it
+     */
+    private static String getFormatName(byte[] encoded) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            return readers.hasNext() ? readers.next().getFormatName() : null;
+        }
+    }
+
+    /**
+     * @return Whether the image is bilevel, palette based or has only a few colors
+     */
+    private static boolean isLineArt(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_BINARY || image.getColorModel() instanceof IndexColorModel) {
+            return true;
+        }
+        Set<Integer> colors = new HashSet<>();
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if (colors.add(image.getRGB(x, y)) && colors.size() > LINE_ART_MAX_COLORS) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static byte[] writeJpeg(BufferedImage image, float quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            return null;
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOut = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] writePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        return ImageIO.write(image, "png", out) ? out.toByteArray() : null;
+    }
+
+    /**
+     * Read an image, enforcing the size limit on the bytes actually read since Content-Length can be missing or wrong
+     */
+    private static byte[] fetchImage(String source) throws IOException {
+        InputStream in;
+        if (source.startsWith("classpath:")) {
+            String path = source.substring("classpath:".length());
+            in = ClassUtils.getDefaultClassLoader().getResourceAsStream(path.startsWith("/") ? path.substring(1) : path);
+            if (in == null) {
+                throw new FileNotFoundException(source);
+            }
+        } else {
+            URLConnection connection = new URL(source).openConnection();
+            connection.setConnectTimeout(FETCH_TIMEOUT_MILLIS);
+            connection.setReadTimeout(FETCH_TIMEOUT_MILLIS);
+            if (connection.getContentLengthLong() > MAX_IMAGE_BYTES) {
+                throw new ImageTooLargeException();
+            }
+            in = connection.getInputStream();
+        }
+        try (InputStream image = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = image.read(buffer)) != -1) {
+                if (out.size() + count > MAX_IMAGE_BYTES) {
+                    throw new ImageTooLargeException();
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static String unwrapUrl(String value) {
+        String source = value.trim();
+        if (source.startsWith("url(") && source.endsWith(")")) {
+            source = source.substring(4, source.length() - 1).trim();
+        }
+        if (source.length() >= 2 && (source.charAt(0) == '\'' || source.charAt(0) == '"')
+                && source.charAt(source.length() - 1) == source.charAt(0)) {
+            source = source.substring(1, source.length() - 1).trim();
+        }
+        return source;
+    }
+
+    /**
+     * Replace the predefined and numeric character entities of an attribute value
+     */
+    private static String unescapeXml(String value) {
+        if (value.indexOf('&') < 0) {
+            return value;
+        }
+        Matcher matcher = ENTITY.matcher(value);
+        StringBuffer result = new StringBuffer(value.length());
+        while (matcher.find()) {
+            String entity = matcher.group(1);
+            String replacement;
+            switch (entity) {
+                case "amp":
+                    replacement = "&";
+                    break;
+                case "lt":
+                    replacement = "<";
+                    break;
+                case "gt":
+                    replacement = ">";
+                    break;
+                case "quot":
+                    replacement = "\"";
+                    break;
+                case "apos":
+                    replacement = "'";
+                    break;
+                default:
+                    int codePoint = entity.startsWith("#x")
+                            ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1));
+                    replacement = new String(Character.toChars(codePoint));
+                    break;
+            }
+            matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    private static String attribute(String tag, Pattern pattern) {
+        Matcher matcher = pattern.matcher(tag);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * @return The length in inches, or 0 when it is missing or not an absolute length (auto, percentages, ...)
+     */
+    private static double toInches(String length) {
+        if (length == null) {
+            return 0;
+        }
+        Matcher matcher = LENGTH.matcher(length);
+        if (!matcher.matches()) {
+            return 0;
+        }
+        double value = Double.parseDouble(matcher.group(1));
+        switch (matcher.group(2)) {
+            case "mm":
+                return value / 25.4;
+            case "cm":
+                return value / 2.54;
+            case "in":
+                return value;
+            case "pc":
+                return value * 12 / POINTS_PER_INCH;
+            default:
+                // pt, and px which FOP resolves at its default source resolution of 72 dpi
+                return value / POINTS_PER_INCH;
+        }
+    }
+
+    /**
+     * The image is larger than the optimizer fetches, FOP still embeds it from the original reference
+     */
+    private static class ImageTooLargeException extends IOException {
+        private ImageTooLargeException() {
+            super("image larger than " + MAX_IMAGE_BYTES + " bytes");
+        }
+    }
+}
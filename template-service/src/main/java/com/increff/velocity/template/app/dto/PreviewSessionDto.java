@@ -0,0 +1,78 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.PreviewStats;
+import com.increff.velocity.template.app.render.RenderControl;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the in-flight render of each preview key, e.g. one per open template editor.
+ * Starting a render for a key cancels the render still running for it, so only the latest edit is rendered to the end.
+ */
+@Service
+public class PreviewSessionDto {
+
+    private final Map<String, RenderControl> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong cancelledWhileQueued = new AtomicLong();
+    private final AtomicLong cpuMillisSpentOnCancelled = new AtomicLong();
+    private final AtomicLong estimatedCpuMillisSaved = new AtomicLong();
+
+    /**
+     * Start tracking a render on the current thread
+     * @param previewKey The preview key of the render, or null for renders that are never superseded
+     * @return The control to pass to the render
+     */
+    public RenderControl begin(String previewKey) {
+        RenderControl control = new RenderControl(previewKey);
+        if (previewKey != null && !previewKey.isEmpty()) {
+            RenderControl previous = inFlight.put(previewKey, control);
+            if (previous != null) {
+                previous.cancel("Render cancelled: superseded by a newer preview render for key " + previewKey);
+            }
+        }
+        return control;
+    }
+
+    /**
+     * Stop tracking a render. Must be called on the render thread once the render has finished or failed. A render only
+     * counts as cancelled if the cancellation reached it before it completed.
+     * @param control The control returned by {@link #begin}
+     * @param predictedMillis The predicted time of the full render, used to estimate the CPU time a cancellation saved
+     * @param admitted Whether the render got past admission before it ended
+     */
+    public void end(RenderControl control, long predictedMillis, boolean admitted) {
+        if (control.getPreviewKey() != null) {
+            inFlight.remove(control.getPreviewKey(), control);
+        }
+        control.finish();
+        if (!control.isCancelled()) {
+            completed.incrementAndGet();
+            return;
+        }
+        long cpuMillis = control.getCpuMillis();
+        cancelled.incrementAndGet();
+        if (!admitted) {
+            cancelledWhileQueued.incrementAndGet();
+        }
+        cpuMillisSpentOnCancelled.addAndGet(cpuMillis);
+        estimatedCpuMillisSaved.addAndGet(Math.max(0, predictedMillis - cpuMillis));
+        System.out.println(control.getCancelReason() + " after " + control.getElapsedMillis() + " ms, " + cpuMillis
+                + " ms CPU");
+    }
+
+    public PreviewStats getStats() {
+        PreviewStats stats = new PreviewStats();
+        stats.setInFlight(inFlight.size());
+        stats.setCompleted(completed.get());
+        stats.setCancelled(cancelled.get());
+        stats.setCancelledWhileQueued(cancelledWhileQueued.get());
+        stats.setCpuMillisSpentOnCancelled(cpuMillisSpentOnCancelled.get());
+        stats.setEstimatedCpuMillisSaved(estimatedCpuMillisSaved.get());
+        return stats;
+    }
+}
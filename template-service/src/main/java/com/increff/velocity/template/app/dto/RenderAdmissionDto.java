@@ -0,0 +1,134 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.AdmissionStats;
+import com.increff.velocity.template.app.render.RenderControl;
+import com.nextscm.commons.spring.common.ApiException;
+import com.nextscm.commons.spring.common.ApiStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost based admission control for renders.
+ * Requests predicted to exceed the cost limit are rejected up front. The rest are routed to a light or a heavy lane by
+ * their predicted time; each lane has its own concurrency limit, so cheap labels never queue behind large invoices.
+ */
+@Service
+public class RenderAdmissionDto {
+
+    public static final String LIGHT_LANE = "light";
+    public static final String HEAVY_LANE = "heavy";
+
+    @Value("${render.admission.heavy-threshold-millis:2000}")
+    private long heavyThresholdMillis;
+
+    @Value("${render.admission.max-predicted-millis:120000}")
+    private long maxPredictedMillis;
+
+    // 0 means derive from the number of processors
+    @Value("${render.admission.light-concurrency:0}")
+    private int lightConcurrency;
+
+    @Value("${render.admission.heavy-concurrency:0}")
+    private int heavyConcurrency;
+
+    @Value("${render.admission.queue-timeout-millis:30000}")
+    private long queueTimeoutMillis;
+
+    private Semaphore lightLane;
+    private Semaphore heavyLane;
+    private final AtomicLong admittedLight = new AtomicLong();
+    private final AtomicLong admittedHeavy = new AtomicLong();
+    private final AtomicLong rejectedOverCost = new AtomicLong();
+    private final AtomicLong rejectedQueueTimeout = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (lightConcurrency <= 0) {
+            lightConcurrency = processors;
+        }
+        if (heavyConcurrency <= 0) {
+            heavyConcurrency = Math.max(1, processors / 4);
+        }
+        lightLane = new Semaphore(lightConcurrency, true);
+        heavyLane = new Semaphore(heavyConcurrency, true);
+    }
+
+    /**
+     * Wait for a slot in the lane matching the predicted cost
+     * @param templateName The template being rendered
+     * @param predictedMillis The predicted render time
+     * @param control The control of the render, a cancellation interrupts the wait
+     * @return The admission, to be closed when the render finishes
+     * @throws ApiException If the render is too expensive or its lane stays full for the queue timeout
+     */
+    public Admission admit(String templateName, long predictedMillis, RenderControl control) throws ApiException {
+        if (predictedMillis > maxPredictedMillis) {
+            rejectedOverCost.incrementAndGet();
+            throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Render rejected: predicted time of " + predictedMillis
+                    + " ms for template " + templateName + " exceeds the limit of " + maxPredictedMillis + " ms");
+        }
+        boolean heavy = predictedMillis >= heavyThresholdMillis;
+        Semaphore lane = heavy ? heavyLane : lightLane;
+        control.beginWait();
+        try {
+            if (!lane.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                rejectedQueueTimeout.incrementAndGet();
+                throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Render rejected: no capacity in the "
+                        + (heavy ? HEAVY_LANE : LIGHT_LANE) + " lane after " + queueTimeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Render interrupted while waiting for admission");
+        } finally {
+            control.endWait();
+        }
+        (heavy ? admittedHeavy : admittedLight).incrementAndGet();
+        return new Admission(lane, heavy ? HEAVY_LANE : LIGHT_LANE);
+    }
+
+    public AdmissionStats getStats() {
+        AdmissionStats stats = new AdmissionStats();
+        stats.setHeavyThresholdMillis(heavyThresholdMillis);
+        stats.setMaxPredictedMillis(maxPredictedMillis);
+        stats.setLightCapacity(lightConcurrency);
+        stats.setLightAvailable(lightLane.availablePermits());
+        stats.setLightQueued(lightLane.getQueueLength());
+        stats.setHeavyCapacity(heavyConcurrency);
+        stats.setHeavyAvailable(heavyLane.availablePermits());
+        stats.setHeavyQueued(heavyLane.getQueueLength());
+        stats.setAdmittedLight(admittedLight.get());
+        stats.setAdmittedHeavy(admittedHeavy.get());
+        stats.setRejectedOverCost(rejectedOverCost.get());
+        stats.setRejectedQueueTimeout(rejectedQueueTimeout.get());
+        return stats;
+    }
+
+    public static class Admission implements AutoCloseable {
+        private final Semaphore lane;
+        private final String laneName;
+        private boolean released;
+
+        private Admission(Semaphore lane, String laneName) {
+            this.lane = lane;
+            this.laneName = laneName;
+        }
+
+        public String getLaneName() {
+            return laneName;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                lane.release();
+            }
+        }
+    }
+}
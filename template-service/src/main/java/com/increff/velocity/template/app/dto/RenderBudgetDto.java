@@ -0,0 +1,66 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.BudgetStats;
+import com.increff.velocity.template.app.model.RenderBudget;
+import com.increff.velocity.template.app.render.RenderBudgetExceededException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per request limits that stop runaway renders before they exhaust the CPU or the heap.
+ * Every limit is set globally under "render.budget" and can be overridden per template, e.g.
+ * "render.budget.crocs_invoice_template.max-pages". 0 disables a limit.
+ */
+@Service
+public class RenderBudgetDto {
+
+    private static final String PROPERTY_PREFIX = "render.budget";
+
+    @Autowired
+    private TemplatePropertiesDto templatePropertiesDto;
+
+    private final AtomicLong timeExceeded = new AtomicLong();
+    private final AtomicLong foSizeExceeded = new AtomicLong();
+    private final AtomicLong loopIterationsExceeded = new AtomicLong();
+    private final AtomicLong pagesExceeded = new AtomicLong();
+
+    public RenderBudget getBudget(String templateName) {
+        RenderBudget budget = new RenderBudget();
+        budget.setMaxMillis(templatePropertiesDto.getLong(PROPERTY_PREFIX, templateName, "max-millis", 120000));
+        budget.setMaxFoChars(templatePropertiesDto.getLong(PROPERTY_PREFIX, templateName, "max-fo-chars", 20000000));
+        budget.setMaxLoopIterations(templatePropertiesDto.getLong(PROPERTY_PREFIX, templateName, "max-loop-iterations", 1000000));
+        budget.setMaxPages(templatePropertiesDto.getInt(PROPERTY_PREFIX, templateName, "max-pages", 2000));
+        return budget;
+    }
+
+    public void recordViolation(String templateName, RenderBudgetExceededException e) {
+        System.out.println("Render of " + templateName + " aborted: " + e.getMessage());
+        switch (e.getBudget()) {
+            case RenderBudgetExceededException.TIME:
+                timeExceeded.incrementAndGet();
+                break;
+            case RenderBudgetExceededException.FO_SIZE:
+                foSizeExceeded.incrementAndGet();
+                break;
+            case RenderBudgetExceededException.LOOP_ITERATIONS:
+                loopIterationsExceeded.incrementAndGet();
+                break;
+            case RenderBudgetExceededException.PAGES:
+                pagesExceeded.incrementAndGet();
+                break;
+            default:
+                break;
+        }
+    }
+
+    public BudgetStats getStats() {
+        BudgetStats stats = new BudgetStats();
+        stats.setTimeExceeded(timeExceeded.get());
+        stats.setFoSizeExceeded(foSizeExceeded.get());
+        stats.setLoopIterationsExceeded(loopIterationsExceeded.get());
+        stats.setPagesExceeded(pagesExceeded.get());
+        return stats;
+    }
+}
@@ -0,0 +1,44 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.RenderReport;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+@Service
+public class RenderReportDto {
+
+    private static final int MAX_REPORTS = 200;
+
+    private final Deque<RenderReport> reports = new ArrayDeque<>();
+
+    public void addReport(RenderReport report) {
+        System.out.println(report);
+        synchronized (reports) {
+            if (reports.size() >= MAX_REPORTS) {
+                reports.removeFirst();
+            }
+            reports.addLast(report);
+        }
+    }
+
+    /**
+     * Get the most recent render reports, newest first
+     * @param templateName Only return reports of this template, or all reports when null
+     * @return The matching reports
+     */
+    public List<RenderReport> getReports(String templateName) {
+        List<RenderReport> result = new ArrayList<>();
+        synchronized (reports) {
+            reports.descendingIterator().forEachRemaining(report -> {
+                if (templateName == null || templateName.equals(report.getTemplateName())) {
+                    result.add(report);
+                }
+            });
+        }
+        return result;
+    }
+}
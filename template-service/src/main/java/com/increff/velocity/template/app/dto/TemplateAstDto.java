@@ -0,0 +1,286 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.render.GuardedForeach;
+import com.increff.velocity.template.app.util.HashUtil;
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.Token;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses templates into Velocity ASTs, for static analysis and for rendering.
+ * Parsed trees are cached by template content, so a template is parsed once per version and the same tree is analysed
+ * and rendered. Each version is parsed under its own name, so its inline macros live in their own namespace and never
+ * replace the macros of another template or version. #foreach runs as {@link GuardedForeach}, which counts every
+ * iteration against the loop budget of the render.
+ */
+@Service
+public class TemplateAstDto {
+
+    public static final String DATA_ROOT = "data";
+    private static final int MAX_CACHED_TEMPLATES = 512;
+    private static final int NAME_HASH_CHARS = 12;
+
+    private final Map<String, ParsedTemplate> cache = new ConcurrentHashMap<>();
+    private RuntimeInstance runtimeInstance;
+
+    @PostConstruct
+    public void init() {
+        runtimeInstance = new RuntimeInstance();
+        runtimeInstance.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, "org.apache.velocity.runtime.log.NullLogChute");
+        runtimeInstance.setProperty(RuntimeConstants.VM_PERM_ALLOW_INLINE_REPLACE_GLOBAL, "true");
+        runtimeInstance.setProperty(RuntimeConstants.VM_PERM_INLINE_LOCAL, "true");
+        // directive.foreach.maxloops is left unset, Velocity would end longer loops silently and render a truncated
+        // document. The loop budget aborts the render instead.
+        runtimeInstance.setProperty(RuntimeConstants.CUSTOM_DIRECTIVES, GuardedForeach.class.getName());
+        runtimeInstance.init();
+    }
+
+    /**
+     * Parse a template, reusing the cached tree when the same content was parsed before
+     * @param templateName The template name, used in parse error messages
+     * @param templateContent The template source
+     * @return The root of the parsed tree
+     * @throws ParseException If the template has a syntax error
+     */
+    public SimpleNode parse(String templateName, String templateContent) throws ParseException {
+        return getParsedTemplate(templateName, templateContent).ast;
+    }
+
+    /**
+     * Get a template ready to merge. It is initialized on first use and shared by every render of the same version.
+     * @param templateName The template name, used in parse error messages
+     * @param templateContent The template source
+     * @return The initialized template
+     * @throws ParseException If the template has a syntax error
+     */
+    public Template getTemplate(String templateName, String templateContent) throws ParseException {
+        ParsedTemplate parsed = getParsedTemplate(templateName, templateContent);
+        synchronized (parsed) {
+            if (parsed.template == null) {
+                Template template = new Template();
+                // Macro calls are resolved in the namespace of the name the tree was parsed under
+                template.setName(parsed.name);
+                template.setRuntimeServices(runtimeInstance);
+                template.setData(parsed.ast);
+                template.initDocument();
+                parsed.template = template;
+            }
+            return parsed.template;
+        }
+    }
+
+    private ParsedTemplate getParsedTemplate(String templateName, String templateContent) throws ParseException {
+        String key = HashUtil.sha256(templateContent);
+        ParsedTemplate parsed = cache.get(key);
+        if (parsed != null) {
+            return parsed;
+        }
+        if (cache.size() >= MAX_CACHED_TEMPLATES) {
+            cache.clear();
+        }
+        try {
+            // Concurrent first renders of a version wait for one parse instead of parsing the same name again
+            return cache.computeIfAbsent(key, k -> parseTemplate(templateName, k, templateContent));
+        } catch (UncheckedParseException e) {
+            throw e.getCause();
+        }
+    }
+
+    private ParsedTemplate parseTemplate(String templateName, String key, String templateContent) {
+        String name = templateName != null ? templateName + "@" + key.substring(0, NAME_HASH_CHARS) : key;
+        try {
+            // The macro namespace is never dumped: a name always holds the same content, so a parse after the cache
+            // was cleared defines the same macros again, and a render of the evicted tree may still be calling them.
+            // Namespaces are bounded by the number of template versions.
+            return new ParsedTemplate(name, runtimeInstance.parse(new StringReader(templateContent), name, false));
+        } catch (ParseException e) {
+            throw new UncheckedParseException(e);
+        }
+    }
+
+    /**
+     * Split a reference into its root and property path, stopping at the first method call.
+     * "$data.itemLines", "$!{data.itemLines}" and "$data.get('itemLines')" all give [data, itemLines].
+     * Numeric get() arguments are returned as "[]", the element of a list.
+     * @param reference The reference node
+     * @return The root followed by the property names
+     */
+    public static List<String> getReferencePath(ASTReference reference) {
+        List<String> path = new ArrayList<>();
+        parseReferencePath(reference, path);
+        return path;
+    }
+
+    /**
+     * @return Whether the reference is a plain property path, i.e. it calls no method other than get() with a
+     * literal argument. "$data.itemLines.size()" is not.
+     */
+    public static boolean isPropertyPath(ASTReference reference) {
+        return parseReferencePath(reference, new ArrayList<>());
+    }
+
+    /**
+     * Get the name a reference starts with, "data" for "$data.itemLines", "$!data" and "${data}".
+     * {@link ASTReference#getRootString()} is only set once the node is initialized for rendering, so the name is read
+     * from the first token of the reference like Velocity does during initialization.
+     * @param reference The reference node
+     * @return The root name
+     */
+    public static String getRoot(ASTReference reference) {
+        Token token = reference.getFirstToken();
+        String image = token.image;
+        int dollar = image.lastIndexOf('$');
+        if (dollar > 0) {
+            // Escapes and other text before the last $
+            image = image.substring(dollar);
+        }
+        if (image.startsWith("$!{") || image.equals("${")) {
+            return token.next != null ? token.next.image : image;
+        }
+        if (image.startsWith("$!")) {
+            return image.substring(2);
+        }
+        if (image.startsWith("$")) {
+            return image.substring(1);
+        }
+        return image;
+    }
+
+    /**
+     * Find the inline #macro definitions of a template
+     * @param root The root of the parsed tree
+     * @return The macros by name
+     */
+    public static Map<String, MacroDefinition> collectMacros(Node root) {
+        Map<String, MacroDefinition> macros = new HashMap<>();
+        collectMacros(root, macros);
+        return macros;
+    }
+
+    private static void collectMacros(Node node, Map<String, MacroDefinition> macros) {
+        if (node instanceof ASTDirective && "macro".equals(((ASTDirective) node).getDirectiveName())) {
+            int childCount = node.jjtGetNumChildren();
+            if (childCount >= 2) {
+                List<String> parameters = new ArrayList<>();
+                for (int i = 1; i < childCount - 1; i++) {
+                    Node parameter = node.jjtGetChild(i);
+                    if (parameter instanceof ASTReference) {
+                        parameters.add(getRoot((ASTReference) parameter));
+                    }
+                }
+                macros.put(node.jjtGetChild(0).literal().trim(), new MacroDefinition(parameters, node.jjtGetChild(childCount - 1)));
+            }
+            return;
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            collectMacros(node.jjtGetChild(i), macros);
+        }
+    }
+
+    private static boolean parseReferencePath(ASTReference reference, List<String> path) {
+        String root = getRoot(reference);
+        path.add(root);
+        String literal = reference.literal();
+        int start = literal.indexOf(root);
+        if (start < 0) {
+            return false;
+        }
+        String rest = literal.substring(start + root.length());
+        int index = 0;
+        while (index < rest.length() && rest.charAt(index) == '.') {
+            int end = index + 1;
+            while (end < rest.length() && (Character.isJavaIdentifierPart(rest.charAt(end)) || rest.charAt(end) == '-')) {
+                end++;
+            }
+            String name = rest.substring(index + 1, end);
+            if (end < rest.length() && rest.charAt(end) == '(') {
+                String argument = getSingleLiteralArgument(rest, end);
+                if (!"get".equals(name) || argument == null) {
+                    return false;
+                }
+                path.add(argument);
+                end = rest.indexOf(')', end) + 1;
+            } else {
+                path.add(name);
+            }
+            index = end;
+        }
+        // Anything left is a closing brace or an index/alternate value we do not follow
+        String remaining = rest.substring(index).trim();
+        return remaining.isEmpty() || "}".equals(remaining);
+    }
+
+    private static String getSingleLiteralArgument(String text, int openParenthesis) {
+        int close = text.indexOf(')', openParenthesis);
+        if (close < 0) {
+            return null;
+        }
+        String argument = text.substring(openParenthesis + 1, close).trim();
+        if (argument.length() >= 2 && (argument.charAt(0) == '"' || argument.charAt(0) == '\'')
+                && argument.charAt(argument.length() - 1) == argument.charAt(0)) {
+            return argument.substring(1, argument.length() - 1);
+        }
+        if (!argument.isEmpty() && argument.chars().allMatch(Character::isDigit)) {
+            return "[]";
+        }
+        return null;
+    }
+
+    private static class ParsedTemplate {
+        private final String name;
+        private final SimpleNode ast;
+        private Template template;
+
+        private ParsedTemplate(String name, SimpleNode ast) {
+            this.name = name;
+            this.ast = ast;
+        }
+    }
+
+    private static class UncheckedParseException extends RuntimeException {
+        private UncheckedParseException(ParseException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized ParseException getCause() {
+            return (ParseException) super.getCause();
+        }
+    }
+
+    public static class MacroDefinition {
+        private final List<String> parameters;
+        private final Node body;
+
+        private MacroDefinition(List<String> parameters, Node body) {
+            this.parameters = parameters;
+            this.body = body;
+        }
+
+        /**
+         * @return The names of the macro arguments, without the $
+         */
+        public List<String> getParameters() {
+            return parameters;
+        }
+
+        public Node getBody() {
+            return body;
+        }
+    }
+}
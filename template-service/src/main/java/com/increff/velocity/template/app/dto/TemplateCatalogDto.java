@@ -0,0 +1,139 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.TemplateVersion;
+import com.increff.velocity.template.app.store.TemplateChangeListener;
+import com.increff.velocity.template.app.store.TemplateStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory catalog of the templates in the {@link TemplateStore}, kept current by the store's change notifications.
+ * Template content is cached by version id; versions are immutable so cached content never goes stale, and parsed
+ * templates are cached by content hash so a new version is compiled on its first render.
+ */
+@Service
+public class TemplateCatalogDto implements TemplateChangeListener {
+
+    private static final int MAX_CACHED_CONTENTS = 256;
+
+    @Autowired
+    private TemplateStore templateStore;
+
+    private final Map<String, TemplateVersion> latestVersions = new ConcurrentHashMap<>();
+    private final Map<String, String> contents = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_CONTENTS;
+        }
+    };
+
+    @PostConstruct
+    public void init() {
+        templateStore.addChangeListener(this);
+        try {
+            for (String templateName : templateStore.getTemplateNames()) {
+                refresh(templateName);
+            }
+            System.out.println("Template catalog loaded " + latestVersions.size() + " stored templates");
+        } catch (IOException e) {
+            System.out.println("Error loading template catalog: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onTemplateChanged(String templateName) {
+        refresh(templateName);
+        TemplateVersion latest = latestVersions.get(templateName);
+        System.out.println("Template " + templateName + " changed, latest version: "
+                + (latest != null ? latest.getVersionId() : "none"));
+    }
+
+    public TemplateVersion save(String templateName, byte[] content) throws IOException {
+        TemplateVersion version = templateStore.save(templateName, content);
+        latestVersions.put(templateName, version);
+        return version;
+    }
+
+    public void saveArtifact(String versionId, String artifactName, byte[] content) throws IOException {
+        templateStore.saveArtifact(versionId, artifactName, content);
+    }
+
+    /**
+     * @return The artifact built from a version, or null if it was never saved
+     */
+    public byte[] getArtifact(String versionId, String artifactName) throws IOException {
+        return templateStore.getArtifact(versionId, artifactName);
+    }
+
+    public List<String> getTemplateNames() {
+        List<String> names = new ArrayList<>(latestVersions.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * @return The latest version of a stored template, or null if it is not in the store
+     */
+    public TemplateVersion getLatestVersion(String templateName) {
+        return latestVersions.get(templateName);
+    }
+
+    public List<TemplateVersion> getVersions(String templateName) throws IOException {
+        return templateStore.getVersions(templateName);
+    }
+
+    /**
+     * Get the content of a stored template
+     * @param templateName The template name
+     * @param versionId The version to read, or null for the latest version
+     * @return The template content, or null if the template or the version is not in the store
+     */
+    public String getContent(String templateName, String versionId) throws IOException {
+        if (versionId == null) {
+            TemplateVersion latest = latestVersions.get(templateName);
+            if (latest == null) {
+                return null;
+            }
+            versionId = latest.getVersionId();
+        }
+        String key = templateName + "@" + versionId;
+        synchronized (contents) {
+            String content = contents.get(key);
+            if (content != null) {
+                return content;
+            }
+        }
+        byte[] bytes = templateStore.getContent(templateName, versionId);
+        if (bytes == null) {
+            return null;
+        }
+        String content = new String(bytes, StandardCharsets.UTF_8);
+        synchronized (contents) {
+            contents.put(key, content);
+        }
+        return content;
+    }
+
+    private void refresh(String templateName) {
+        try {
+            List<TemplateVersion> versions = templateStore.getVersions(templateName);
+            if (versions.isEmpty()) {
+                latestVersions.remove(templateName);
+            } else {
+                latestVersions.put(templateName, versions.get(versions.size() - 1));
+            }
+        } catch (IOException e) {
+            System.out.println("Error refreshing template " + templateName + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.LoopCost;
+import com.increff.velocity.template.app.model.TemplateCostProfile;
+import com.increff.velocity.template.app.util.HashUtil;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTIntegerLiteral;
+import org.apache.velocity.runtime.parser.node.ASTIntegerRange;
+import org.apache.velocity.runtime.parser.node.ASTObjectArray;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTSetDirective;
+import org.apache.velocity.runtime.parser.node.ASTText;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Predicts how expensive a render is before running it.
+ * A static pass over the parsed template records its loops (expanded through macro calls), barcodes, images and
+ * tables as weighted work units. The loops are then sized from the request payload, and the resulting units are turned
+ * into milliseconds with a per template version model fitted to observed render times, so a new version does not
+ * inherit the timings of the one it replaces.
+ */
+@Service
+public class TemplateCostDto {
+
+    private static final double NODE_WEIGHT = 1;
+    private static final double BARCODE_WEIGHT = 40;
+    private static final double IMAGE_WEIGHT = 20;
+    private static final double TABLE_WEIGHT = 10;
+    private static final double TABLE_ROW_WEIGHT = 5;
+    // Iterations assumed for loops over values built inside the template, which the payload cannot size
+    private static final int UNKNOWN_ITERATIONS = 10;
+    private static final int MAX_MACRO_DEPTH = 8;
+    private static final int MAX_CACHED_PROFILES = 512;
+
+    private static final double DEFAULT_BASE_MILLIS = 50;
+    private static final double DEFAULT_MILLIS_PER_UNIT = 0.05;
+    private static final double OBSERVATION_DECAY = 0.95;
+    private static final double MIN_OBSERVATIONS = 5;
+
+    @Autowired
+    private TemplateAstDto templateAstDto;
+
+    private final Map<String, TemplateCostProfile> profiles = new ConcurrentHashMap<>();
+    // By template content hash
+    private final Map<String, CostModel> models = new ConcurrentHashMap<>();
+    private final CostModel globalModel = new CostModel();
+
+    /**
+     * Statically analyse a template. Results are cached by template content.
+     * A template that fails to parse gets an empty profile; the render itself reports the syntax error.
+     * @param templateName The template name
+     * @param templateContent The template source
+     * @return The loop structure and element counts of the template
+     */
+    public TemplateCostProfile getProfile(String templateName, String templateContent) {
+        String key = HashUtil.sha256(templateContent);
+        TemplateCostProfile profile = profiles.get(key);
+        if (profile != null) {
+            return profile;
+        }
+        profile = new TemplateCostProfile(templateName);
+        profile.setContentHash(key);
+        try {
+            Node ast = templateAstDto.parse(templateName, templateContent);
+            Analyzer analyzer = new Analyzer(profile);
+            analyzer.macros.putAll(TemplateAstDto.collectMacros(ast));
+            analyzer.walk(ast, null, new HashMap<>(), 0);
+            profile.setAnalyzed(true);
+        } catch (ParseException | RuntimeException e) {
+            System.out.println("Cost analysis failed for template " + templateName + ": " + e.getMessage());
+        }
+        if (profiles.size() >= MAX_CACHED_PROFILES) {
+            profiles.clear();
+        }
+        profiles.put(key, profile);
+        return profile;
+    }
+
+    /**
+     * Size the template's loops from the payload and sum the weighted work units
+     * @param profile The template profile from {@link #getProfile}
+     * @param form The render model
+     * @return The estimated work units of the render
+     */
+    public double estimateUnits(TemplateCostProfile profile, Object form) {
+        Map<String, Object> scope = new HashMap<>();
+        scope.put(TemplateAstDto.DATA_ROOT, form);
+        double units = profile.getStaticWeight();
+        for (LoopCost loop : profile.getLoops()) {
+            units += getLoopUnits(loop, scope);
+        }
+        return units;
+    }
+
+    /**
+     * @return The predicted render time, from the observations of this template version once there are enough of them
+     */
+    public long predictMillis(TemplateCostProfile profile, double units) {
+        CostModel model = models.get(profile.getContentHash());
+        double global = globalModel.predict(units, DEFAULT_BASE_MILLIS + DEFAULT_MILLIS_PER_UNIT * units);
+        return Math.round(model != null ? model.predict(units, global) : global);
+    }
+
+    public void recordObservation(TemplateCostProfile profile, double units, long millis) {
+        globalModel.add(units, millis);
+        if (!models.containsKey(profile.getContentHash()) && models.size() >= MAX_CACHED_PROFILES) {
+            models.clear();
+        }
+        models.computeIfAbsent(profile.getContentHash(), hash -> new CostModel()).add(units, millis);
+    }
+
+    private double getLoopUnits(LoopCost loop, Map<String, Object> scope) {
+        Collection<?> items = null;
+        int count;
+        if (loop.getRangeSize() >= 0) {
+            count = loop.getRangeSize();
+        } else if (!scope.containsKey(loop.getSourceRoot())) {
+            count = UNKNOWN_ITERATIONS;
+        } else {
+            items = toCollection(resolve(scope.get(loop.getSourceRoot()), loop.getSourcePath()));
+            count = items == null ? 0 : items.size();
+        }
+        if (loop.getChildren().isEmpty() || items == null) {
+            double childUnits = 0;
+            for (LoopCost child : loop.getChildren()) {
+                childUnits += getLoopUnits(child, scope);
+            }
+            return count * (loop.getBodyWeight() + childUnits);
+        }
+
+        boolean shadowed = scope.containsKey(loop.getAlias());
+        Object shadowedValue = scope.get(loop.getAlias());
+        double units = 0;
+        for (Object item : items) {
+            scope.put(loop.getAlias(), item);
+            units += loop.getBodyWeight();
+            for (LoopCost child : loop.getChildren()) {
+                units += getLoopUnits(child, scope);
+            }
+        }
+        if (shadowed) {
+            scope.put(loop.getAlias(), shadowedValue);
+        } else {
+            scope.remove(loop.getAlias());
+        }
+        return units;
+    }
+
+    private static Object resolve(Object value, List<String> path) {
+        for (String property : path) {
+            if (value instanceof Map) {
+                value = ((Map<?, ?>) value).get(property);
+            } else if ("[]".equals(property) && value instanceof List) {
+                List<?> list = (List<?>) value;
+                value = list.isEmpty() ? null : list.get(0);
+            } else {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    private static Collection<?> toCollection(Object value) {
+        if (value instanceof Collection) {
+            return (Collection<?>) value;
+        } else if (value instanceof Map) {
+            return ((Map<?, ?>) value).values();
+        } else if (value instanceof Object[]) {
+            return Arrays.asList((Object[]) value);
+        }
+        return null;
+    }
+
+    private static class Analyzer {
+        private final TemplateCostProfile profile;
+        private final Map<String, TemplateAstDto.MacroDefinition> macros = new HashMap<>();
+        // Values assigned with #set, visible everywhere after the assignment like in the Velocity context
+        private final Map<String, List<String>> assignments = new HashMap<>();
+        private final Deque<String> expandingMacros = new ArrayDeque<>();
+
+        private Analyzer(TemplateCostProfile profile) {
+            this.profile = profile;
+        }
+
+        private void walk(Node node, LoopCost loop, Map<String, List<String>> bindings, int depth) {
+            if (node instanceof ASTDirective) {
+                String name = ((ASTDirective) node).getDirectiveName();
+                if ("macro".equals(name)) {
+                    return;
+                }
+                if ("foreach".equals(name)) {
+                    walkForeach(node, loop, bindings, depth);
+                    return;
+                }
+                addWeight(loop, NODE_WEIGHT);
+                TemplateAstDto.MacroDefinition macro = macros.get(name);
+                if (macro != null) {
+                    walkMacroCall(name, macro, node, loop, bindings, depth);
+                    return;
+                }
+            } else if (node instanceof ASTSetDirective) {
+                addWeight(loop, NODE_WEIGHT);
+                recordAssignment(node, bindings);
+            } else if (node instanceof ASTReference) {
+                addWeight(loop, NODE_WEIGHT);
+            } else if (node instanceof ASTText) {
+                countMarkup(node.literal(), loop);
+            }
+            for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+                walk(node.jjtGetChild(i), loop, bindings, depth);
+            }
+        }
+
+        private void walkForeach(Node node, LoopCost parent, Map<String, List<String>> bindings, int depth) {
+            int childCount = node.jjtGetNumChildren();
+            if (childCount < 3) {
+                return;
+            }
+            Node aliasNode = node.jjtGetChild(0);
+            Node source = node.jjtGetChild(childCount - 2);
+            String alias = aliasNode instanceof ASTReference ? TemplateAstDto.getRoot((ASTReference) aliasNode) : null;
+
+            LoopCost loop;
+            if (source instanceof ASTReference) {
+                List<String> path = resolve(TemplateAstDto.getReferencePath((ASTReference) source), bindings);
+                loop = new LoopCost(alias, path.get(0), new ArrayList<>(path.subList(1, path.size())));
+            } else {
+                loop = new LoopCost(alias, null, new ArrayList<>());
+                loop.setRangeSize(getLiteralSize(source));
+            }
+            (parent == null ? profile.getLoops() : parent.getChildren()).add(loop);
+            profile.setLoopCount(profile.getLoopCount() + 1);
+            profile.setMaxLoopNesting(Math.max(profile.getMaxLoopNesting(), depth + 1));
+
+            // The loop alias hides a macro parameter of the same name
+            Map<String, List<String>> loopBindings = bindings;
+            if (alias != null && bindings.containsKey(alias)) {
+                loopBindings = new HashMap<>(bindings);
+                loopBindings.remove(alias);
+            }
+            walk(node.jjtGetChild(childCount - 1), loop, loopBindings, depth + 1);
+        }
+
+        private void walkMacroCall(String name, TemplateAstDto.MacroDefinition macro, Node call, LoopCost loop,
+                                   Map<String, List<String>> bindings, int depth) {
+            if (expandingMacros.size() >= MAX_MACRO_DEPTH || expandingMacros.contains(name)) {
+                return;
+            }
+            Map<String, List<String>> macroBindings = new HashMap<>();
+            for (int i = 0; i < macro.getParameters().size() && i < call.jjtGetNumChildren(); i++) {
+                Node argument = call.jjtGetChild(i);
+                if (argument instanceof ASTReference) {
+                    macroBindings.put(macro.getParameters().get(i), resolve(TemplateAstDto.getReferencePath((ASTReference) argument), bindings));
+                }
+            }
+            expandingMacros.push(name);
+            walk(macro.getBody(), loop, macroBindings, depth);
+            expandingMacros.pop();
+        }
+
+        private void recordAssignment(Node node, Map<String, List<String>> bindings) {
+            if (node.jjtGetNumChildren() < 2 || !(node.jjtGetChild(0) instanceof ASTReference)) {
+                return;
+            }
+            ASTReference target = (ASTReference) node.jjtGetChild(0);
+            Node value = node.jjtGetChild(1);
+            while (!(value instanceof ASTReference) && value.jjtGetNumChildren() == 1) {
+                value = value.jjtGetChild(0);
+            }
+            if (TemplateAstDto.getReferencePath(target).size() != 1) {
+                return;
+            }
+            if (value instanceof ASTReference && TemplateAstDto.isPropertyPath((ASTReference) value)) {
+                assignments.put(TemplateAstDto.getRoot(target), resolve(TemplateAstDto.getReferencePath((ASTReference) value), bindings));
+            } else {
+                assignments.remove(TemplateAstDto.getRoot(target));
+            }
+        }
+
+        private List<String> resolve(List<String> path, Map<String, List<String>> bindings) {
+            List<String> bound = bindings.get(path.get(0));
+            if (bound == null) {
+                bound = assignments.get(path.get(0));
+            }
+            if (bound == null) {
+                return path;
+            }
+            List<String> resolved = new ArrayList<>(bound);
+            resolved.addAll(path.subList(1, path.size()));
+            return resolved;
+        }
+
+        private void countMarkup(String text, LoopCost loop) {
+            int barcodes = count(text, "<fo:instream-foreign-object");
+            int images = count(text, "<fo:external-graphic");
+            int rows = count(text, "<fo:table-row");
+            int tables = count(text, "<fo:table ") + count(text, "<fo:table>");
+            profile.setBarcodeCount(profile.getBarcodeCount() + barcodes);
+            profile.setImageCount(profile.getImageCount() + images);
+            profile.setTableRowCount(profile.getTableRowCount() + rows);
+            profile.setTableCount(profile.getTableCount() + tables);
+            addWeight(loop, barcodes * BARCODE_WEIGHT + images * IMAGE_WEIGHT + tables * TABLE_WEIGHT + rows * TABLE_ROW_WEIGHT);
+        }
+
+        private void addWeight(LoopCost loop, double weight) {
+            if (loop == null) {
+                profile.setStaticWeight(profile.getStaticWeight() + weight);
+            } else {
+                loop.setBodyWeight(loop.getBodyWeight() + weight);
+            }
+        }
+
+        private static int getLiteralSize(Node source) {
+            if (source instanceof ASTObjectArray) {
+                return source.jjtGetNumChildren();
+            }
+            if (source instanceof ASTIntegerRange && source.jjtGetNumChildren() == 2
+                    && source.jjtGetChild(0) instanceof ASTIntegerLiteral && source.jjtGetChild(1) instanceof ASTIntegerLiteral) {
+                try {
+                    int from = Integer.parseInt(source.jjtGetChild(0).literal().trim());
+                    int to = Integer.parseInt(source.jjtGetChild(1).literal().trim());
+                    return Math.abs(to - from) + 1;
+                } catch (NumberFormatException e) {
+                    return UNKNOWN_ITERATIONS;
+                }
+            }
+            return UNKNOWN_ITERATIONS;
+        }
+
+        private static int count(String text, String marker) {
+            int count = 0;
+            for (int index = text.indexOf(marker); index >= 0; index = text.indexOf(marker, index + marker.length())) {
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Least squares fit of render time against work units, with older observations decaying so the model follows
+     * changes in hardware and load.
+     */
+    private static class CostModel {
+        private double weight;
+        private double sumUnits;
+        private double sumMillis;
+        private double sumUnitsSquared;
+        private double sumUnitsMillis;
+
+        private synchronized void add(double units, double millis) {
+            weight = weight * OBSERVATION_DECAY + 1;
+            sumUnits = sumUnits * OBSERVATION_DECAY + units;
+            sumMillis = sumMillis * OBSERVATION_DECAY + millis;
+            sumUnitsSquared = sumUnitsSquared * OBSERVATION_DECAY + units * units;
+            sumUnitsMillis = sumUnitsMillis * OBSERVATION_DECAY + units * millis;
+        }
+
+        private synchronized double predict(double units, double fallback) {
+            if (weight < MIN_OBSERVATIONS) {
+                return fallback;
+            }
+            double variance = weight * sumUnitsSquared - sumUnits * sumUnits;
+            if (variance > 1e-9) {
+                double slope = (weight * sumUnitsMillis - sumUnits * sumMillis) / variance;
+                if (slope > 0) {
+                    double intercept = (sumMillis - slope * sumUnits) / weight;
+                    return Math.max(0, intercept + slope * units);
+                }
+            }
+            // All observations had about the same size, scale their average time
+            double averageUnits = sumUnits / weight;
+            double averageMillis = sumMillis / weight;
+            return averageUnits > 0 ? averageMillis * units / averageUnits : averageMillis;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.increff.velocity.template.app.dto;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.increff.velocity.template.app.model.TemplateInfo;
+import com.increff.velocity.template.app.model.TemplateValidationReport;
+import com.increff.velocity.template.app.model.TemplateVersion;
 import com.nextscm.commons.spring.common.ApiException;
 import com.nextscm.commons.spring.common.ApiStatus;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,14 +13,15 @@ import org.springframework.core.io.ResourceLoader;
 import org.springframework.core.io.support.ResourcePatternResolver;
 import org.springframework.core.io.support.ResourcePatternUtils;
 import org.springframework.stereotype.Service;
+import org.springframework.util.FileCopyUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -30,6 +34,15 @@ public class TemplateDto {
     @Autowired
     private ResourceLoader resourceLoader;
 
+    @Autowired
+    private TemplateCatalogDto templateCatalogDto;
+
+    @Autowired
+    private TemplateValidationDto templateValidationDto;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
     @Value("${template.directory:templates}")
     private String templateDirectory;
     
@@ -57,6 +70,11 @@ public class TemplateDto {
             // Log error
             e.printStackTrace();
         }
+        for (String storedName : templateCatalogDto.getTemplateNames()) {
+            if (!templates.contains(storedName)) {
+                templates.add(storedName);
+            }
+        }
         return templates;
     }
     
@@ -89,52 +107,112 @@ public class TemplateDto {
             // Log error
             e.printStackTrace();
         }
+        // Stored templates take precedence over bundled templates of the same name
+        for (String storedName : templateCatalogDto.getTemplateNames()) {
+            TemplateVersion latest = templateCatalogDto.getLatestVersion(storedName);
+            if (latest != null) {
+                templates.removeIf(template -> template.getName().equals(storedName));
+                templates.add(toTemplateInfo(latest));
+            }
+        }
         return templates;
     }
     
     /**
-     * Save a template file to the templates directory
+     * Compile a template file and save it as a new version in the template store shared by all nodes.
+     * The validation report is saved with the version and returned with the template information.
      * @param file The template file to save
-     * @param overwrite Whether to overwrite an existing file with the same name
-     * @return Information about the saved template
+     * @param overwrite Whether to add a new version to an existing template with the same name
+     * @param maxRegressionPercent Reject the upload if it renders slower than the previous version by more than this,
+     * or null for the configured threshold
+     * @return Information about the saved template version
      * @throws IOException If there is an error saving the file
-     * @throws ApiException If the file already exists and overwrite is false
+     * @throws ApiException If the template already exists and overwrite is false, or if it fails validation
      */
-    public TemplateInfo saveTemplate(MultipartFile file, boolean overwrite) throws IOException, ApiException {
-        // Determine storage path
-        String storagePath = getTemplateStoragePath();
-        Path storageDirectory = Paths.get(storagePath);
-        
-        // Create directory if it doesn't exist
-        if (!Files.exists(storageDirectory)) {
-            Files.createDirectories(storageDirectory);
-        }
-        
+    public TemplateInfo saveTemplate(MultipartFile file, boolean overwrite, Double maxRegressionPercent)
+            throws IOException, ApiException {
         // Get the original file name
         String originalFilename = file.getOriginalFilename();
         if (originalFilename == null) {
             throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Invalid file name");
         }
         
-        // Create the target file path
-        Path targetPath = storageDirectory.resolve(originalFilename);
-        
-        // Check if file already exists
-        if (Files.exists(targetPath) && !overwrite) {
+        // Check if template already exists
+        if (!overwrite && templateExists(originalFilename)) {
             throw new ApiException(ApiStatus.UNKNOWN_ERROR, 
                 "Template with name '" + originalFilename + "' already exists. Use 'overwrite=true' to replace it.");
         }
         
-        // Save the file
-        Files.copy(file.getInputStream(), targetPath, StandardCopyOption.REPLACE_EXISTING);
+        // Parse, dry render and compare with the version being replaced before anything is saved
+        byte[] content = file.getBytes();
+        TemplateValidationReport validation = null;
+        if (templateValidationDto.isEnabled()) {
+            TemplateVersion previousVersion = templateCatalogDto.getLatestVersion(originalFilename);
+            String previousContent = templateExists(originalFilename) ? getTemplateContent(originalFilename) : null;
+            validation = templateValidationDto.validate(originalFilename, determineTemplateType(originalFilename),
+                    new String(content, StandardCharsets.UTF_8), previousContent,
+                    previousVersion != null ? previousVersion.getVersionId() : null, maxRegressionPercent);
+        }
         
-        // Return information about the saved template
-        String fileType = determineTemplateType(originalFilename);
+        // Save as a new version, other nodes pick it up through the store's change notifications
+        TemplateVersion version = templateCatalogDto.save(originalFilename, content);
+        TemplateInfo templateInfo = toTemplateInfo(version);
+        if (validation != null) {
+            validation.setVersionId(version.getVersionId());
+            templateCatalogDto.saveArtifact(version.getVersionId(), TemplateValidationDto.VALIDATION_ARTIFACT,
+                    objectMapper.writeValueAsBytes(validation));
+            templateInfo.setValidation(validation);
+        }
+        return templateInfo;
+    }
+    
+    /**
+     * Get the validation report saved when a version was uploaded
+     * @param templateName The name of the template
+     * @param versionId The stored version, or null for the latest
+     * @return The report, or null if the version was saved without validation
+     * @throws IOException If the template is not stored or the report cannot be read
+     */
+    public TemplateValidationReport getValidationReport(String templateName, String versionId) throws IOException {
+        if (versionId == null) {
+            TemplateVersion latest = templateCatalogDto.getLatestVersion(templateName);
+            if (latest == null) {
+                throw new IOException("Template not stored: " + templateName);
+            }
+            versionId = latest.getVersionId();
+        }
+        byte[] artifact = templateCatalogDto.getArtifact(versionId, TemplateValidationDto.VALIDATION_ARTIFACT);
+        return artifact != null ? objectMapper.readValue(artifact, TemplateValidationReport.class) : null;
+    }
+    
+    /**
+     * Get all stored versions of a template, oldest first
+     * @param templateName The name of the template
+     * @return The versions, empty for templates that are only bundled with the application
+     * @throws IOException If the store cannot be read
+     */
+    public List<TemplateVersion> getTemplateVersions(String templateName) throws IOException {
+        return templateCatalogDto.getVersions(templateName);
+    }
+    
+    private boolean templateExists(String templateName) {
+        if (templateCatalogDto.getLatestVersion(templateName) != null) {
+            return true;
+        }
+        if (templateStoragePath != null && !templateStoragePath.isEmpty()
+                && Files.exists(Paths.get(templateStoragePath).resolve(templateName))) {
+            return true;
+        }
+        return resourceLoader.getResource("classpath:templates/" + templateName).exists();
+    }
+    
+    private TemplateInfo toTemplateInfo(TemplateVersion version) {
         return new TemplateInfo(
-            originalFilename,
-            fileType,
-            Files.size(targetPath),
-            targetPath.toString()
+            version.getTemplateName(),
+            determineTemplateType(version.getTemplateName()),
+            version.getSize(),
+            "store:" + version.getTemplateName() + "@" + version.getVersionId(),
+            version.getVersionId()
         );
     }
     
@@ -182,8 +260,28 @@ public class TemplateDto {
      * @throws IOException If the template cannot be found or read
      */
     public String getTemplateContent(String templateName) throws IOException {
+        return getTemplateContent(templateName, null);
+    }
+    
+    /**
+     * Get the content of a specific version of a template
+     * @param templateName The name of the template to retrieve, including extension
+     * @param versionId The stored version to read, or null for the latest stored version or the bundled template
+     * @return The content of the template as a string
+     * @throws IOException If the template or version cannot be found or read
+     */
+    public String getTemplateContent(String templateName, String versionId) throws IOException {
         try {
-            // First try to find in the storage directory
+            // Stored templates are shared by all nodes and versioned
+            String storedContent = templateCatalogDto.getContent(templateName, versionId);
+            if (storedContent != null) {
+                return storedContent;
+            }
+            if (versionId != null) {
+                throw new IOException("Template version not found: " + templateName + "@" + versionId);
+            }
+            
+            // Templates saved to the local storage directory before the template store existed
             Path storageDirectory = Paths.get(getTemplateStoragePath());
             Path templatePath = storageDirectory.resolve(templateName);
             
@@ -198,8 +296,9 @@ public class TemplateDto {
                 throw new IOException("Template not found: " + templateName);
             }
             
-            byte[] contentBytes = Files.readAllBytes(Paths.get(resource.getURI()));
-            return new String(contentBytes);
+            // Read through the stream, renders also use this for templates packaged inside the war
+            byte[] contentBytes = FileCopyUtils.copyToByteArray(resource.getInputStream());
+            return new String(contentBytes, StandardCharsets.UTF_8);
         } catch (IOException e) {
             throw new IOException("Error reading template content: " + e.getMessage(), e);
         }
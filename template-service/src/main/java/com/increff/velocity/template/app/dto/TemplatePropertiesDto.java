@@ -0,0 +1,79 @@
+package com.increff.velocity.template.app.dto;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+@Service
+public class TemplatePropertiesDto {
+
+    private static final String TEMPLATE_EXTENSION = ".fo.vm";
+
+    @Autowired
+    private Environment environment;
+
+    /**
+     * Resolve a setting that can be overridden per template.
+     * For prefix "pdf.optimize", template "crocs_invoice_template.fo.vm" and option "target-dpi" the lookup order is
+     * "pdf.optimize.crocs_invoice_template.target-dpi" and then "pdf.optimize.target-dpi".
+     * @param prefix The property prefix of the feature
+     * @param templateName The template being rendered, may be null
+     * @param option The option name
+     * @return The configured value or null if it is not set at any level
+     */
+    public String getProperty(String prefix, String templateName, String option) {
+        String templateKey = toTemplateKey(templateName);
+        if (templateKey != null) {
+            String value = environment.getProperty(prefix + "." + templateKey + "." + option);
+            if (value != null && !value.trim().isEmpty()) {
+                return value.trim();
+            }
+        }
+        String value = environment.getProperty(prefix + "." + option);
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    public boolean getBoolean(String prefix, String templateName, String option, boolean defaultValue) {
+        String value = getProperty(prefix, templateName, option);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public int getInt(String prefix, String templateName, String option, int defaultValue) {
+        String value = getProperty(prefix, templateName, option);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value '" + value + "' for " + prefix + "." + option + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String prefix, String templateName, String option, long defaultValue) {
+        String value = getProperty(prefix, templateName, option);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value '" + value + "' for " + prefix + "." + option + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public double getDouble(String prefix, String templateName, String option, double defaultValue) {
+        String value = getProperty(prefix, templateName, option);
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value '" + value + "' for " + prefix + "." + option + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static String toTemplateKey(String templateName) {
+        if (templateName == null || templateName.isEmpty()) {
+            return null;
+        }
+        return templateName.endsWith(TEMPLATE_EXTENSION)
+                ? templateName.substring(0, templateName.length() - TEMPLATE_EXTENSION.length())
+                : templateName;
+    }
+}
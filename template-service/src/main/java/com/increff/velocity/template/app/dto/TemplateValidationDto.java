@@ -0,0 +1,186 @@
+package com.increff.velocity.template.app.dto;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.increff.velocity.template.app.model.RenderReport;
+import com.increff.velocity.template.app.model.TemplateValidationReport;
+import com.nextscm.commons.spring.common.ApiException;
+import com.nextscm.commons.spring.common.ApiStatus;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compiles uploaded templates before they are saved.
+ * An upload is parsed, rendered against the sample data of its template type and laid out by FOP, which validates the
+ * merged FO. The dry render of the previous version is repeated under the same conditions so the two are comparable,
+ * and uploads whose median render time gets slower by more than the regression threshold can be rejected.
+ */
+@Service
+public class TemplateValidationDto {
+
+    public static final String VALIDATION_ARTIFACT = "validation.json";
+    private static final String DEFAULT_SAMPLE_TYPE = "invoice";
+
+    @Autowired
+    private TemplateAstDto templateAstDto;
+
+    @Autowired
+    private TemplateCostDto templateCostDto;
+
+    @Autowired
+    private PdfDto pdfDto;
+
+    @Autowired
+    private ResourceLoader resourceLoader;
+
+    @Value("${template.validation.enabled:true}")
+    private boolean enabled;
+
+    @Value("${template.validation.dry-runs:5}")
+    private int dryRuns;
+
+    // 0 disables the regression check
+    @Value("${template.validation.max-regression-percent:0}")
+    private double maxRegressionPercent;
+
+    @Value("${template.validation.min-regression-millis:50}")
+    private long minRegressionMillis;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Compile a template and compare it with its previous version
+     * @param templateName The template name
+     * @param templateType The template type, selects the sample-&lt;type&gt;.json used for the dry render
+     * @param content The uploaded template source
+     * @param previousContent The source of the version the upload replaces, or null for a new template
+     * @param previousVersionId The stored version id of the previous version, or null if it is bundled or new
+     * @param requestMaxRegressionPercent The regression threshold of this upload, or null for the configured one
+     * @return The validation report
+     * @throws ApiException If the template does not parse, does not render the sample data of its type, or regresses by
+     * more than the threshold
+     */
+    public TemplateValidationReport validate(String templateName, String templateType, String content,
+                                             String previousContent, String previousVersionId,
+                                             Double requestMaxRegressionPercent) throws ApiException {
+        TemplateValidationReport report = new TemplateValidationReport();
+        report.setTemplateName(templateName);
+        report.setPreviousVersionId(previousVersionId);
+        report.setMaxRegressionPercent(requestMaxRegressionPercent != null ? requestMaxRegressionPercent : maxRegressionPercent);
+
+        long parseStartTime = System.currentTimeMillis();
+        try {
+            templateAstDto.parse(templateName, content);
+        } catch (ParseException e) {
+            throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Template syntax error: " + e.getMessage());
+        }
+        report.setParseMillis(System.currentTimeMillis() - parseStartTime);
+        report.setCostProfile(templateCostDto.getProfile(templateName, content));
+
+        String sampleType = getSampleType(templateType);
+        String sampleJson = readSample(sampleType);
+        report.setSampleType(sampleType);
+        if (sampleType.equals(templateType)) {
+            report.setDryRun(dryRun(templateName, content, sampleJson));
+        } else {
+            String typeName = templateType != null ? templateType : "template type";
+            report.getWarnings().add("Not validated against " + typeName + " data: there is no sample-"
+                    + (templateType != null ? templateType : "<type>") + ".json, rendered with sample-" + sampleType
+                    + ".json instead");
+            try {
+                report.setDryRun(dryRun(templateName, content, sampleJson));
+            } catch (ApiException e) {
+                // The template was not written for this data, a failure says nothing about the template
+                report.getWarnings().add("Rendering sample-" + sampleType + ".json failed, not rejected since it is not "
+                        + typeName + " data: " + e.getMessage());
+                return report;
+            }
+        }
+
+        if (previousContent != null) {
+            try {
+                report.setPreviousDryRun(dryRun(templateName, previousContent, sampleJson));
+            } catch (ApiException e) {
+                System.out.println("Previous version of " + templateName + " does not render the sample data, "
+                        + "skipping comparison: " + e.getMessage());
+            }
+        }
+        compare(report);
+        return report;
+    }
+
+    /**
+     * @return The report of the dry render with the median total time
+     */
+    private RenderReport dryRun(String templateName, String content, String sampleJson) throws ApiException {
+        List<RenderReport> reports = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, dryRuns); i++) {
+            RenderReport report;
+            try {
+                report = pdfDto.dryRun(templateName, content, sampleJson);
+            } catch (JsonProcessingException e) {
+                throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Invalid sample JSON: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // Velocity reports invalid references and macro calls with runtime exceptions
+                throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Error while rendering sample data, message: " + e.getMessage());
+            }
+            reports.add(report);
+        }
+        reports.sort(Comparator.comparingLong(RenderReport::getTotalMillis));
+        return reports.get(reports.size() / 2);
+    }
+
+    private void compare(TemplateValidationReport report) throws ApiException {
+        RenderReport current = report.getDryRun();
+        RenderReport previous = report.getPreviousDryRun();
+        if (previous == null) {
+            return;
+        }
+        report.setTotalMillisChangePercent(changePercent(previous.getTotalMillis(), current.getTotalMillis()));
+        report.setPdfBytesChangePercent(changePercent(previous.getPdfBytes(), current.getPdfBytes()));
+        report.setPageCountChange(current.getPageCount() - previous.getPageCount());
+
+        double threshold = report.getMaxRegressionPercent();
+        Double change = report.getTotalMillisChangePercent();
+        long slowerMillis = current.getTotalMillis() - previous.getTotalMillis();
+        if (threshold > 0 && change != null && change > threshold && slowerMillis >= minRegressionMillis) {
+            throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Template rejected: render time regressed by "
+                    + Math.round(change) + "% (" + previous.getTotalMillis() + " ms -> " + current.getTotalMillis()
+                    + " ms), more than the allowed " + threshold + "%");
+        }
+    }
+
+    private static Double changePercent(long before, long after) {
+        return before > 0 ? (after - before) * 100.0 / before : null;
+    }
+
+    private String getSampleType(String templateType) {
+        if (templateType != null && resourceLoader.getResource("classpath:sample-" + templateType + ".json").exists()) {
+            return templateType;
+        }
+        return DEFAULT_SAMPLE_TYPE;
+    }
+
+    private String readSample(String sampleType) throws ApiException {
+        Resource resource = resourceLoader.getResource("classpath:sample-" + sampleType + ".json");
+        try (Reader reader = new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8)) {
+            return FileCopyUtils.copyToString(reader);
+        } catch (IOException e) {
+            throw new ApiException(ApiStatus.UNKNOWN_ERROR, "Sample JSON not found for template type: " + sampleType);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.increff.velocity.template.app.model;
+
+public class AdmissionStats {
+    private long heavyThresholdMillis;
+    private long maxPredictedMillis;
+    private int lightCapacity;
+    private int lightAvailable;
+    private int lightQueued;
+    private int heavyCapacity;
+    private int heavyAvailable;
+    private int heavyQueued;
+    private long admittedLight;
+    private long admittedHeavy;
+    private long rejectedOverCost;
+    private long rejectedQueueTimeout;
+
+    public long getHeavyThresholdMillis() {
+        return heavyThresholdMillis;
+    }
+
+    public void setHeavyThresholdMillis(long heavyThresholdMillis) {
+        this.heavyThresholdMillis = heavyThresholdMillis;
+    }
+
+    public long getMaxPredictedMillis() {
+        return maxPredictedMillis;
+    }
+
+    public void setMaxPredictedMillis(long maxPredictedMillis) {
+        this.maxPredictedMillis = maxPredictedMillis;
+    }
+
+    public int getLightCapacity() {
+        return lightCapacity;
+    }
+
+    public void setLightCapacity(int lightCapacity) {
+        this.lightCapacity = lightCapacity;
+    }
+
+    public int getLightAvailable() {
+        return lightAvailable;
+    }
+
+    public void setLightAvailable(int lightAvailable) {
+        this.lightAvailable = lightAvailable;
+    }
+
+    public int getLightQueued() {
+        return lightQueued;
+    }
+
+    public void setLightQueued(int lightQueued) {
+        this.lightQueued = lightQueued;
+    }
+
+    public int getHeavyCapacity() {
+        return heavyCapacity;
+    }
+
+    public void setHeavyCapacity(int heavyCapacity) {
+        this.heavyCapacity = heavyCapacity;
+    }
+
+    public int getHeavyAvailable() {
+        return heavyAvailable;
+    }
+
+    public void setHeavyAvailable(int heavyAvailable) {
+        this.heavyAvailable = heavyAvailable;
+    }
+
+    public int getHeavyQueued() {
+        return heavyQueued;
+    }
+
+    public void setHeavyQueued(int heavyQueued) {
+        this.heavyQueued = heavyQueued;
+    }
+
+    public long getAdmittedLight() {
+        return admittedLight;
+    }
+
+    public void setAdmittedLight(long admittedLight) {
+        this.admittedLight = admittedLight;
+    }
+
+    public long getAdmittedHeavy() {
+        return admittedHeavy;
+    }
+
+    public void setAdmittedHeavy(long admittedHeavy) {
+        this.admittedHeavy = admittedHeavy;
+    }
+
+    public long getRejectedOverCost() {
+        return rejectedOverCost;
+    }
+
+    public void setRejectedOverCost(long rejectedOverCost) {
+        this.rejectedOverCost = rejectedOverCost;
+    }
+
+    public long getRejectedQueueTimeout() {
+        return rejectedQueueTimeout;
+    }
+
+    public void setRejectedQueueTimeout(long rejectedQueueTimeout) {
+        this.rejectedQueueTimeout = rejectedQueueTimeout;
+    }
+}
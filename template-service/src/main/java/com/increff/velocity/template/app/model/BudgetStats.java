@@ -0,0 +1,40 @@
+package com.increff.velocity.template.app.model;
+
+public class BudgetStats {
+    private long timeExceeded;
+    private long foSizeExceeded;
+    private long loopIterationsExceeded;
+    private long pagesExceeded;
+
+    public long getTimeExceeded() {
+        return timeExceeded;
+    }
+
+    public void setTimeExceeded(long timeExceeded) {
+        this.timeExceeded = timeExceeded;
+    }
+
+    public long getFoSizeExceeded() {
+        return foSizeExceeded;
+    }
+
+    public void setFoSizeExceeded(long foSizeExceeded) {
+        this.foSizeExceeded = foSizeExceeded;
+    }
+
+    public long getLoopIterationsExceeded() {
+        return loopIterationsExceeded;
+    }
+
+    public void setLoopIterationsExceeded(long loopIterationsExceeded) {
+        this.loopIterationsExceeded = loopIterationsExceeded;
+    }
+
+    public long getPagesExceeded() {
+        return pagesExceeded;
+    }
+
+    public void setPagesExceeded(long pagesExceeded) {
+        this.pagesExceeded = pagesExceeded;
+    }
+}
@@ -0,0 +1,85 @@
+package com.increff.velocity.template.app.model;
+
+public class BufferPoolStats {
+    private boolean direct;
+    private long pooledBytes;
+    private long maxPooledBytes;
+    private long chunksAllocated;
+    private long chunksReused;
+    private long bytesReused;
+    private long outputs;
+    private long averageOutputBytes;
+    private long averageAllocatedBytesPerOutput;
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public void setDirect(boolean direct) {
+        this.direct = direct;
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    public void setPooledBytes(long pooledBytes) {
+        this.pooledBytes = pooledBytes;
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    public long getChunksAllocated() {
+        return chunksAllocated;
+    }
+
+    public void setChunksAllocated(long chunksAllocated) {
+        this.chunksAllocated = chunksAllocated;
+    }
+
+    public long getChunksReused() {
+        return chunksReused;
+    }
+
+    public void setChunksReused(long chunksReused) {
+        this.chunksReused = chunksReused;
+    }
+
+    public long getBytesReused() {
+        return bytesReused;
+    }
+
+    public void setBytesReused(long bytesReused) {
+        this.bytesReused = bytesReused;
+    }
+
+    public long getOutputs() {
+        return outputs;
+    }
+
+    public void setOutputs(long outputs) {
+        this.outputs = outputs;
+    }
+
+    public long getAverageOutputBytes() {
+        return averageOutputBytes;
+    }
+
+    public void setAverageOutputBytes(long averageOutputBytes) {
+        this.averageOutputBytes = averageOutputBytes;
+    }
+
+    public long getAverageAllocatedBytesPerOutput() {
+        return averageAllocatedBytesPerOutput;
+    }
+
+    public void setAverageAllocatedBytesPerOutput(long averageAllocatedBytesPerOutput) {
+        this.averageAllocatedBytesPerOutput = averageAllocatedBytesPerOutput;
+    }
+}
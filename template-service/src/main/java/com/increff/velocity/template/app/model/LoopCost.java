@@ -0,0 +1,70 @@
+package com.increff.velocity.template.app.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LoopCost {
+    private String alias;
+    private String sourceRoot;
+    private List<String> sourcePath = new ArrayList<>();
+    private int rangeSize = -1;
+    private double bodyWeight;
+    private List<LoopCost> children = new ArrayList<>();
+
+    public LoopCost() {
+    }
+
+    public LoopCost(String alias, String sourceRoot, List<String> sourcePath) {
+        this.alias = alias;
+        this.sourceRoot = sourceRoot;
+        this.sourcePath = sourcePath;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public void setAlias(String alias) {
+        this.alias = alias;
+    }
+
+    public String getSourceRoot() {
+        return sourceRoot;
+    }
+
+    public void setSourceRoot(String sourceRoot) {
+        this.sourceRoot = sourceRoot;
+    }
+
+    public List<String> getSourcePath() {
+        return sourcePath;
+    }
+
+    public void setSourcePath(List<String> sourcePath) {
+        this.sourcePath = sourcePath;
+    }
+
+    public int getRangeSize() {
+        return rangeSize;
+    }
+
+    public void setRangeSize(int rangeSize) {
+        this.rangeSize = rangeSize;
+    }
+
+    public double getBodyWeight() {
+        return bodyWeight;
+    }
+
+    public void setBodyWeight(double bodyWeight) {
+        this.bodyWeight = bodyWeight;
+    }
+
+    public List<LoopCost> getChildren() {
+        return children;
+    }
+
+    public void setChildren(List<LoopCost> children) {
+        this.children = children;
+    }
+}
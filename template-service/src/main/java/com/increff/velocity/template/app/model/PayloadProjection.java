@@ -0,0 +1,50 @@
+package com.increff.velocity.template.app.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PayloadProjection {
+    private String templateName;
+    private boolean fullPayload;
+    private String reason;
+    private List<String> paths = new ArrayList<>();
+
+    public PayloadProjection() {
+    }
+
+    public PayloadProjection(String templateName) {
+        this.templateName = templateName;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public void setTemplateName(String templateName) {
+        this.templateName = templateName;
+    }
+
+    public boolean isFullPayload() {
+        return fullPayload;
+    }
+
+    public void setFullPayload(boolean fullPayload) {
+        this.fullPayload = fullPayload;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    public void setPaths(List<String> paths) {
+        this.paths = paths;
+    }
+}
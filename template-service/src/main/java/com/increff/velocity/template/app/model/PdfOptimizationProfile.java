@@ -0,0 +1,61 @@
+package com.increff.velocity.template.app.model;
+
+public class PdfOptimizationProfile {
+    private boolean enabled;
+    private int targetDpi;
+    private float jpegQuality;
+    private boolean dedupeImages;
+    private boolean compressObjectStreams;
+
+    public PdfOptimizationProfile() {
+    }
+
+    public PdfOptimizationProfile(boolean enabled, int targetDpi, float jpegQuality, boolean dedupeImages,
+                                  boolean compressObjectStreams) {
+        this.enabled = enabled;
+        this.targetDpi = targetDpi;
+        this.jpegQuality = jpegQuality;
+        this.dedupeImages = dedupeImages;
+        this.compressObjectStreams = compressObjectStreams;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getTargetDpi() {
+        return targetDpi;
+    }
+
+    public void setTargetDpi(int targetDpi) {
+        this.targetDpi = targetDpi;
+    }
+
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    public void setJpegQuality(float jpegQuality) {
+        this.jpegQuality = jpegQuality;
+    }
+
+    public boolean isDedupeImages() {
+        return dedupeImages;
+    }
+
+    public void setDedupeImages(boolean dedupeImages) {
+        this.dedupeImages = dedupeImages;
+    }
+
+    public boolean isCompressObjectStreams() {
+        return compressObjectStreams;
+    }
+
+    public void setCompressObjectStreams(boolean compressObjectStreams) {
+        this.compressObjectStreams = compressObjectStreams;
+    }
+}
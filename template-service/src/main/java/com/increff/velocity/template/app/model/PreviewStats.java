@@ -0,0 +1,58 @@
+package com.increff.velocity.template.app.model;
+
+public class PreviewStats {
+    private int inFlight;
+    private long completed;
+    private long cancelled;
+    private long cancelledWhileQueued;
+    private long cpuMillisSpentOnCancelled;
+    private long estimatedCpuMillisSaved;
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public void setInFlight(int inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(long completed) {
+        this.completed = completed;
+    }
+
+    public long getCancelled() {
+        return cancelled;
+    }
+
+    public void setCancelled(long cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    public long getCancelledWhileQueued() {
+        return cancelledWhileQueued;
+    }
+
+    public void setCancelledWhileQueued(long cancelledWhileQueued) {
+        this.cancelledWhileQueued = cancelledWhileQueued;
+    }
+
+    public long getCpuMillisSpentOnCancelled() {
+        return cpuMillisSpentOnCancelled;
+    }
+
+    public void setCpuMillisSpentOnCancelled(long cpuMillisSpentOnCancelled) {
+        this.cpuMillisSpentOnCancelled = cpuMillisSpentOnCancelled;
+    }
+
+    public long getEstimatedCpuMillisSaved() {
+        return estimatedCpuMillisSaved;
+    }
+
+    public void setEstimatedCpuMillisSaved(long estimatedCpuMillisSaved) {
+        this.estimatedCpuMillisSaved = estimatedCpuMillisSaved;
+    }
+}
@@ -0,0 +1,40 @@
+package com.increff.velocity.template.app.model;
+
+public class RenderBudget {
+    private long maxMillis;
+    private long maxFoChars;
+    private long maxLoopIterations;
+    private int maxPages;
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public void setMaxMillis(long maxMillis) {
+        this.maxMillis = maxMillis;
+    }
+
+    public long getMaxFoChars() {
+        return maxFoChars;
+    }
+
+    public void setMaxFoChars(long maxFoChars) {
+        this.maxFoChars = maxFoChars;
+    }
+
+    public long getMaxLoopIterations() {
+        return maxLoopIterations;
+    }
+
+    public void setMaxLoopIterations(long maxLoopIterations) {
+        this.maxLoopIterations = maxLoopIterations;
+    }
+
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+    public void setMaxPages(int maxPages) {
+        this.maxPages = maxPages;
+    }
+}
@@ -0,0 +1,274 @@
+package com.increff.velocity.template.app.model;
+
+public class RenderReport {
+    private String templateName;
+    private long timestamp;
+    private boolean optimized;
+    private long payloadChars;
+    private long payloadParseMillis;
+    private boolean payloadProjected;
+    private long payloadFieldsRead;
+    private long payloadFieldsSkipped;
+    private double costUnits;
+    private long predictedMillis;
+    private String lane;
+    private long queueMillis;
+    private long mergeMillis;
+    private long optimizeMillis;
+    private long layoutMillis;
+    private long totalMillis;
+    private long loopIterations;
+    private String budgetExceeded;
+    private long foChars;
+    private int pageCount;
+    private long pdfBytes;
+    private int imagesFound;
+    private int imagesOptimized;
+    private int imagesDeduplicated;
+    private long imageBytesBefore;
+    private long imageBytesAfter;
+
+    public RenderReport() {
+    }
+
+    public RenderReport(String templateName) {
+        this.templateName = templateName;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public void setTemplateName(String templateName) {
+        this.templateName = templateName;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public boolean isOptimized() {
+        return optimized;
+    }
+
+    public void setOptimized(boolean optimized) {
+        this.optimized = optimized;
+    }
+
+    public long getPayloadChars() {
+        return payloadChars;
+    }
+
+    public void setPayloadChars(long payloadChars) {
+        this.payloadChars = payloadChars;
+    }
+
+    public long getPayloadParseMillis() {
+        return payloadParseMillis;
+    }
+
+    public void setPayloadParseMillis(long payloadParseMillis) {
+        this.payloadParseMillis = payloadParseMillis;
+    }
+
+    public boolean isPayloadProjected() {
+        return payloadProjected;
+    }
+
+    public void setPayloadProjected(boolean payloadProjected) {
+        this.payloadProjected = payloadProjected;
+    }
+
+    public long getPayloadFieldsRead() {
+        return payloadFieldsRead;
+    }
+
+    public void setPayloadFieldsRead(long payloadFieldsRead) {
+        this.payloadFieldsRead = payloadFieldsRead;
+    }
+
+    public long getPayloadFieldsSkipped() {
+        return payloadFieldsSkipped;
+    }
+
+    public void setPayloadFieldsSkipped(long payloadFieldsSkipped) {
+        this.payloadFieldsSkipped = payloadFieldsSkipped;
+    }
+
+    public double getCostUnits() {
+        return costUnits;
+    }
+
+    public void setCostUnits(double costUnits) {
+        this.costUnits = costUnits;
+    }
+
+    public long getPredictedMillis() {
+        return predictedMillis;
+    }
+
+    public void setPredictedMillis(long predictedMillis) {
+        this.predictedMillis = predictedMillis;
+    }
+
+    public String getLane() {
+        return lane;
+    }
+
+    public void setLane(String lane) {
+        this.lane = lane;
+    }
+
+    public long getQueueMillis() {
+        return queueMillis;
+    }
+
+    public void setQueueMillis(long queueMillis) {
+        this.queueMillis = queueMillis;
+    }
+
+    public long getMergeMillis() {
+        return mergeMillis;
+    }
+
+    public void setMergeMillis(long mergeMillis) {
+        this.mergeMillis = mergeMillis;
+    }
+
+    public long getOptimizeMillis() {
+        return optimizeMillis;
+    }
+
+    public void setOptimizeMillis(long optimizeMillis) {
+        this.optimizeMillis = optimizeMillis;
+    }
+
+    public long getLayoutMillis() {
+        return layoutMillis;
+    }
+
+    public void setLayoutMillis(long layoutMillis) {
+        this.layoutMillis = layoutMillis;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public void setTotalMillis(long totalMillis) {
+        this.totalMillis = totalMillis;
+    }
+
+    public long getLoopIterations() {
+        return loopIterations;
+    }
+
+    public void setLoopIterations(long loopIterations) {
+        this.loopIterations = loopIterations;
+    }
+
+    public String getBudgetExceeded() {
+        return budgetExceeded;
+    }
+
+    public void setBudgetExceeded(String budgetExceeded) {
+        this.budgetExceeded = budgetExceeded;
+    }
+
+    public long getFoChars() {
+        return foChars;
+    }
+
+    public void setFoChars(long foChars) {
+        this.foChars = foChars;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public void setPageCount(int pageCount) {
+        this.pageCount = pageCount;
+    }
+
+    public long getPdfBytes() {
+        return pdfBytes;
+    }
+
+    public void setPdfBytes(long pdfBytes) {
+        this.pdfBytes = pdfBytes;
+    }
+
+    public int getImagesFound() {
+        return imagesFound;
+    }
+
+    public void setImagesFound(int imagesFound) {
+        this.imagesFound = imagesFound;
+    }
+
+    public int getImagesOptimized() {
+        return imagesOptimized;
+    }
+
+    public void setImagesOptimized(int imagesOptimized) {
+        this.imagesOptimized = imagesOptimized;
+    }
+
+    public int getImagesDeduplicated() {
+        return imagesDeduplicated;
+    }
+
+    public void setImagesDeduplicated(int imagesDeduplicated) {
+        this.imagesDeduplicated = imagesDeduplicated;
+    }
+
+    public long getImageBytesBefore() {
+        return imageBytesBefore;
+    }
+
+    public void setImageBytesBefore(long imageBytesBefore) {
+        this.imageBytesBefore = imageBytesBefore;
+    }
+
+    public long getImageBytesAfter() {
+        return imageBytesAfter;
+    }
+
+    public void setImageBytesAfter(long imageBytesAfter) {
+        this.imageBytesAfter = imageBytesAfter;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderReport{template=" + templateName
+                + ", optimized=" + optimized
+                + ", payloadChars=" + payloadChars
+                + ", payloadParseMs=" + payloadParseMillis
+                + ", payloadProjected=" + payloadProjected
+                + ", payloadFields=" + payloadFieldsRead + "/" + (payloadFieldsRead + payloadFieldsSkipped)
+                + ", costUnits=" + Math.round(costUnits)
+                + ", predictedMs=" + predictedMillis
+                + ", lane=" + lane
+                + ", queueMs=" + queueMillis
+                + ", mergeMs=" + mergeMillis
+                + ", optimizeMs=" + optimizeMillis
+                + ", layoutMs=" + layoutMillis
+                + ", totalMs=" + totalMillis
+                + ", loopIterations=" + loopIterations
+                + (budgetExceeded != null ? ", budgetExceeded=" + budgetExceeded : "")
+                + ", foChars=" + foChars
+                + ", pages=" + pageCount
+                + ", pdfBytes=" + pdfBytes
+                + ", images=" + imagesFound
+                + ", imagesOptimized=" + imagesOptimized
+                + ", imagesDeduplicated=" + imagesDeduplicated
+                + ", imageBytes=" + imageBytesBefore + "->" + imageBytesAfter
+                + "}";
+    }
+}
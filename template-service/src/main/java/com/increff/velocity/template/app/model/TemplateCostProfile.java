@@ -0,0 +1,113 @@
+package com.increff.velocity.template.app.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TemplateCostProfile {
+    private String templateName;
+    private String contentHash;
+    private boolean analyzed;
+    private int loopCount;
+    private int maxLoopNesting;
+    private int barcodeCount;
+    private int imageCount;
+    private int tableCount;
+    private int tableRowCount;
+    private double staticWeight;
+    private List<LoopCost> loops = new ArrayList<>();
+
+    public TemplateCostProfile() {
+    }
+
+    public TemplateCostProfile(String templateName) {
+        this.templateName = templateName;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public void setTemplateName(String templateName) {
+        this.templateName = templateName;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public boolean isAnalyzed() {
+        return analyzed;
+    }
+
+    public void setAnalyzed(boolean analyzed) {
+        this.analyzed = analyzed;
+    }
+
+    public int getLoopCount() {
+        return loopCount;
+    }
+
+    public void setLoopCount(int loopCount) {
+        this.loopCount = loopCount;
+    }
+
+    public int getMaxLoopNesting() {
+        return maxLoopNesting;
+    }
+
+    public void setMaxLoopNesting(int maxLoopNesting) {
+        this.maxLoopNesting = maxLoopNesting;
+    }
+
+    public int getBarcodeCount() {
+        return barcodeCount;
+    }
+
+    public void setBarcodeCount(int barcodeCount) {
+        this.barcodeCount = barcodeCount;
+    }
+
+    public int getImageCount() {
+        return imageCount;
+    }
+
+    public void setImageCount(int imageCount) {
+        this.imageCount = imageCount;
+    }
+
+    public int getTableCount() {
+        return tableCount;
+    }
+
+    public void setTableCount(int tableCount) {
+        this.tableCount = tableCount;
+    }
+
+    public int getTableRowCount() {
+        return tableRowCount;
+    }
+
+    public void setTableRowCount(int tableRowCount) {
+        this.tableRowCount = tableRowCount;
+    }
+
+    public double getStaticWeight() {
+        return staticWeight;
+    }
+
+    public void setStaticWeight(double staticWeight) {
+        this.staticWeight = staticWeight;
+    }
+
+    public List<LoopCost> getLoops() {
+        return loops;
+    }
+
+    public void setLoops(List<LoopCost> loops) {
+        this.loops = loops;
+    }
+}
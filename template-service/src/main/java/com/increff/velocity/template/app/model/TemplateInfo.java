@@ -5,6 +5,8 @@ public class TemplateInfo {
     private String type;
     private long size;
     private String path;
+    private String version;
+    private TemplateValidationReport validation;
 
     public TemplateInfo() {
     }
@@ -16,6 +18,11 @@ public class TemplateInfo {
         this.path = path;
     }
 
+    public TemplateInfo(String name, String type, long size, String path, String version) {
+        this(name, type, size, path);
+        this.version = version;
+    }
+
     public String getName() {
         return name;
     }
@@ -47,4 +54,20 @@ public class TemplateInfo {
     public void setPath(String path) {
         this.path = path;
     }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    public TemplateValidationReport getValidation() {
+        return validation;
+    }
+
+    public void setValidation(TemplateValidationReport validation) {
+        this.validation = validation;
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,124 @@
+package com.increff.velocity.template.app.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TemplateValidationReport {
+    private String templateName;
+    private String versionId;
+    private String previousVersionId;
+    private String sampleType;
+    private long parseMillis;
+    private TemplateCostProfile costProfile;
+    private RenderReport dryRun;
+    private RenderReport previousDryRun;
+    private Double totalMillisChangePercent;
+    private Double pdfBytesChangePercent;
+    private Integer pageCountChange;
+    private double maxRegressionPercent;
+    private List<String> warnings = new ArrayList<>();
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public void setTemplateName(String templateName) {
+        this.templateName = templateName;
+    }
+
+    public String getVersionId() {
+        return versionId;
+    }
+
+    public void setVersionId(String versionId) {
+        this.versionId = versionId;
+    }
+
+    public String getPreviousVersionId() {
+        return previousVersionId;
+    }
+
+    public void setPreviousVersionId(String previousVersionId) {
+        this.previousVersionId = previousVersionId;
+    }
+
+    public String getSampleType() {
+        return sampleType;
+    }
+
+    public void setSampleType(String sampleType) {
+        this.sampleType = sampleType;
+    }
+
+    public long getParseMillis() {
+        return parseMillis;
+    }
+
+    public void setParseMillis(long parseMillis) {
+        this.parseMillis = parseMillis;
+    }
+
+    public TemplateCostProfile getCostProfile() {
+        return costProfile;
+    }
+
+    public void setCostProfile(TemplateCostProfile costProfile) {
+        this.costProfile = costProfile;
+    }
+
+    public RenderReport getDryRun() {
+        return dryRun;
+    }
+
+    public void setDryRun(RenderReport dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public RenderReport getPreviousDryRun() {
+        return previousDryRun;
+    }
+
+    public void setPreviousDryRun(RenderReport previousDryRun) {
+        this.previousDryRun = previousDryRun;
+    }
+
+    public Double getTotalMillisChangePercent() {
+        return totalMillisChangePercent;
+    }
+
+    public void setTotalMillisChangePercent(Double totalMillisChangePercent) {
+        this.totalMillisChangePercent = totalMillisChangePercent;
+    }
+
+    public Double getPdfBytesChangePercent() {
+        return pdfBytesChangePercent;
+    }
+
+    public void setPdfBytesChangePercent(Double pdfBytesChangePercent) {
+        this.pdfBytesChangePercent = pdfBytesChangePercent;
+    }
+
+    public Integer getPageCountChange() {
+        return pageCountChange;
+    }
+
+    public void setPageCountChange(Integer pageCountChange) {
+        this.pageCountChange = pageCountChange;
+    }
+
+    public double getMaxRegressionPercent() {
+        return maxRegressionPercent;
+    }
+
+    public void setMaxRegressionPercent(double maxRegressionPercent) {
+        this.maxRegressionPercent = maxRegressionPercent;
+    }
+
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    public void setWarnings(List<String> warnings) {
+        this.warnings = warnings;
+    }
+}
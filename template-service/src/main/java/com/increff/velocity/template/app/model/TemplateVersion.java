@@ -0,0 +1,50 @@
+package com.increff.velocity.template.app.model;
+
+public class TemplateVersion {
+    private String templateName;
+    private String versionId;
+    private long size;
+    private long createdAt;
+
+    public TemplateVersion() {
+    }
+
+    public TemplateVersion(String templateName, String versionId, long size, long createdAt) {
+        this.templateName = templateName;
+        this.versionId = versionId;
+        this.size = size;
+        this.createdAt = createdAt;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public void setTemplateName(String templateName) {
+        this.templateName = templateName;
+    }
+
+    public String getVersionId() {
+        return versionId;
+    }
+
+    public void setVersionId(String versionId) {
+        this.versionId = versionId;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
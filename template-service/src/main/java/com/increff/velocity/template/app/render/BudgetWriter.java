@@ -0,0 +1,239 @@
+package com.increff.velocity.template.app.render;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the merged FO and checks the {@link RenderControl} on every write, so a render stops as soon as its FO
+ * gets larger than the budget, or it runs out of time, instead of after the merge completes.
+ * The FO is written into buffers taken from a {@link BufferPool}, two bytes per character, and read from them by the
+ * image optimization and by FOP, so the document is never copied into one large array. {@link #release()} returns the
+ * buffers to the pool once the PDF is laid out.
+ */
+public class BudgetWriter extends Writer implements CharSequence {
+
+    private final RenderControl control;
+    private final BufferPool pool;
+    private final int chunkSize;
+    private final int chunkShift;
+    private final int chunkMask;
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final List<CharBuffer> chunks = new ArrayList<>();
+    private CharBuffer current;
+    private int length;
+    private boolean released;
+    // Bytes the writer allocated itself: chunks the pool did not have
+    private long allocatedBytes;
+
+    /**
+     * @param chunkSize The size of the pooled buffers in bytes, a power of two
+     */
+    public BudgetWriter(RenderControl control, BufferPool pool, int chunkSize) {
+        this.control = control;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        this.chunkShift = Integer.numberOfTrailingZeros(chunkSize / 2);
+        this.chunkMask = chunkSize / 2 - 1;
+    }
+
+    @Override
+    public void write(int c) {
+        control.checkFoSize(length + 1L);
+        nextChunkIfFull();
+        current.put((char) c);
+        length++;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        control.checkFoSize(length + (long) len);
+        while (len > 0) {
+            nextChunkIfFull();
+            int count = Math.min(len, current.remaining());
+            current.put(cbuf, off, count);
+            off += count;
+            len -= count;
+            length += count;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        control.checkFoSize(length + (long) len);
+        while (len > 0) {
+            nextChunkIfFull();
+            int count = Math.min(len, current.remaining());
+            current.put(str, off, off + count);
+            off += count;
+            len -= count;
+            length += count;
+        }
+    }
+
+    private void nextChunkIfFull() {
+        if (released) {
+            throw new IllegalStateException("Buffers already released");
+        }
+        if (current == null || !current.hasRemaining()) {
+            ByteBuffer buffer = pool.poll(chunkSize);
+            if (buffer == null) {
+                buffer = pool.allocate(chunkSize);
+                allocatedBytes += chunkSize;
+            }
+            buffers.add(buffer);
+            current = buffer.asCharBuffer();
+            chunks.add(current);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return chunks.get(index >>> chunkShift).get(index & chunkMask);
+    }
+
+    /**
+     * @return A copy of the range, for the short matches of the image optimization
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        StringBuilder builder = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            builder.append(charAt(i));
+        }
+        return builder;
+    }
+
+    /**
+     * @return A copy of the whole document, the render path reads it with {@link #newReader} instead
+     */
+    @Override
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+
+    /**
+     * @param edits Replacements to apply while reading, ordered by position and not overlapping
+     * @return A reader of the document straight from the buffers
+     */
+    public Reader newReader(List<TextEdit> edits) {
+        return new ChunkReader(edits != null ? edits : Collections.<TextEdit>emptyList());
+    }
+
+    /**
+     * @return The bytes allocated for this document, by the writer itself rather than by the code writing to it or
+     * reading from it
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Return the buffers to the pool. The document cannot be read afterwards.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        buffers.clear();
+        chunks.clear();
+        current = null;
+    }
+
+    private class ChunkReader extends Reader {
+
+        private final List<TextEdit> edits;
+        private final char[] single = new char[1];
+        private int editIndex;
+        private int position;
+        private String pending;
+        private int pendingOffset;
+        // Read view of the chunk at the position, the chunk itself keeps its write position
+        private CharBuffer view;
+        private int viewIndex = -1;
+
+        private ChunkReader(List<TextEdit> edits) {
+            this.edits = edits;
+        }
+
+        @Override
+        public int read() {
+            return read(single, 0, 1) < 0 ? -1 : single[0];
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int count) {
+            if (released) {
+                throw new IllegalStateException("Buffers already released");
+            }
+            int read = 0;
+            while (read < count) {
+                if (pending != null) {
+                    int n = Math.min(count - read, pending.length() - pendingOffset);
+                    pending.getChars(pendingOffset, pendingOffset + n, buffer, offset + read);
+                    pendingOffset += n;
+                    read += n;
+                    if (pendingOffset == pending.length()) {
+                        pending = null;
+                    }
+                    continue;
+                }
+                TextEdit edit = editIndex < edits.size() ? edits.get(editIndex) : null;
+                if (edit != null && position == edit.getStart()) {
+                    editIndex++;
+                    position = edit.getEnd();
+                    pending = edit.getReplacement().isEmpty() ? null : edit.getReplacement();
+                    pendingOffset = 0;
+                    continue;
+                }
+                int end = edit != null ? edit.getStart() : length;
+                if (position >= end) {
+                    break;
+                }
+                int chunkIndex = position >>> chunkShift;
+                if (chunkIndex != viewIndex) {
+                    view = chunks.get(chunkIndex).duplicate();
+                    viewIndex = chunkIndex;
+                }
+                int chunkOffset = position & chunkMask;
+                int n = Math.min(count - read, Math.min(end - position, chunkMask + 1 - chunkOffset));
+                view.position(chunkOffset);
+                view.get(buffer, offset + read, n);
+                position += n;
+                read += n;
+            }
+            return read == 0 && count > 0 ? -1 : read;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.increff.velocity.template.app.render;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size byte buffers, heap or direct, reused across renders.
+ * Free buffers are kept per chunk size up to a total size limit; buffers released beyond it are left to the garbage
+ * collector.
+ */
+public class BufferPool {
+
+    private final boolean direct;
+    private final long maxPooledBytes;
+    private final Map<Integer, Deque<ByteBuffer>> freeBuffers = new HashMap<>();
+    private long pooledBytes;
+    private final AtomicLong chunksAllocated = new AtomicLong();
+    private final AtomicLong chunksReused = new AtomicLong();
+    private final AtomicLong bytesReused = new AtomicLong();
+
+    public BufferPool(boolean direct, long maxPooledBytes) {
+        this.direct = direct;
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * @return An empty free buffer of the given capacity, or null if the pool has none
+     */
+    public ByteBuffer poll(int chunkSize) {
+        synchronized (freeBuffers) {
+            Deque<ByteBuffer> free = freeBuffers.get(chunkSize);
+            if (free == null || free.isEmpty()) {
+                return null;
+            }
+            ByteBuffer buffer = free.pop();
+            pooledBytes -= chunkSize;
+            chunksReused.incrementAndGet();
+            bytesReused.addAndGet(chunkSize);
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    /**
+     * @return A new buffer of the given capacity, for when {@link #poll} finds none
+     */
+    public ByteBuffer allocate(int chunkSize) {
+        chunksAllocated.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        synchronized (freeBuffers) {
+            if (pooledBytes + buffer.capacity() <= maxPooledBytes) {
+                freeBuffers.computeIfAbsent(buffer.capacity(), size -> new ArrayDeque<>()).push(buffer);
+                pooledBytes += buffer.capacity();
+            }
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public long getPooledBytes() {
+        synchronized (freeBuffers) {
+            return pooledBytes;
+        }
+    }
+
+    public long getChunksAllocated() {
+        return chunksAllocated.get();
+    }
+
+    public long getChunksReused() {
+        return chunksReused.get();
+    }
+
+    public long getBytesReused() {
+        return bytesReused.get();
+    }
+}
@@ -0,0 +1,149 @@
+package com.increff.velocity.template.app.render;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Output stream that writes into buffers taken from a {@link BufferPool}.
+ * Growing adds a buffer instead of copying into a larger array, and the content is read straight from the buffers, so
+ * a PDF is never copied into one large array. Closing does nothing because FOP may close the stream it renders to;
+ * {@link #release()} returns the buffers to the pool once the content has been written out.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final BufferPool pool;
+    private final int chunkSize;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private long size;
+    private boolean released;
+    // Bytes the output path allocated itself: chunks the pool did not have and copy buffers
+    private long allocatedBytes;
+
+    public ChunkedOutputStream(BufferPool pool, int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void write(int b) {
+        nextChunkIfFull();
+        current.put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            nextChunkIfFull();
+            int count = Math.min(length, current.remaining());
+            current.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+            size += count;
+        }
+    }
+
+    private void nextChunkIfFull() {
+        if (released) {
+            throw new IllegalStateException("Buffers already released");
+        }
+        if (current == null || !current.hasRemaining()) {
+            current = pool.poll(chunkSize);
+            if (current == null) {
+                current = pool.allocate(chunkSize);
+                allocatedBytes += chunkSize;
+            }
+            chunks.add(current);
+        }
+    }
+
+    /**
+     * @return The bytes allocated for this output so far, by the stream itself rather than by the code writing to it
+     * or reading from it
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * Write the content to a stream, chunk by chunk
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] copyBuffer = null;
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer content = chunk.duplicate();
+            content.flip();
+            if (content.hasArray()) {
+                out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+                continue;
+            }
+            if (copyBuffer == null) {
+                copyBuffer = new byte[COPY_BUFFER_SIZE];
+                allocatedBytes += COPY_BUFFER_SIZE;
+            }
+            while (content.hasRemaining()) {
+                int count = Math.min(copyBuffer.length, content.remaining());
+                content.get(copyBuffer, 0, count);
+                out.write(copyBuffer, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Write the content to a stream as Base64, encoding straight from the chunks. The stream is not closed.
+     */
+    public void writeBase64To(OutputStream out) throws IOException {
+        OutputStream encoder = Base64.getEncoder().wrap(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        writeTo(encoder);
+        // Closing the encoder writes the final padding, the shield above keeps the target open
+        encoder.close();
+    }
+
+    /**
+     * @return The length of the Base64 encoding of the content
+     */
+    public long getBase64Length() {
+        return (size + 2) / 3 * 4;
+    }
+
+    /**
+     * Return the buffers to the pool. The content cannot be read afterwards.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        current = null;
+    }
+}
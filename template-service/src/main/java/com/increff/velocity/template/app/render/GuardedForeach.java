@@ -0,0 +1,39 @@
+package com.increff.velocity.template.app.render;
+
+import com.increff.velocity.template.app.dto.TemplateAstDto;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.directive.Foreach;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.Node;
+
+/**
+ * #foreach that counts every iteration against the loop budget of the render, whether it iterates the payload, a
+ * literal range or a list built by the template. Iterations are counted where the loop sets its variable, so scans
+ * Velocity makes without a #foreach, e.g. $list.contains(), are not counted.
+ */
+public class GuardedForeach extends Foreach {
+
+    private String elementKey;
+
+    @Override
+    public void init(RuntimeServices rs, InternalContextAdapter context, Node node) throws TemplateInitException {
+        super.init(rs, context, node);
+        Node alias = node.jjtGetChild(0);
+        elementKey = alias instanceof ASTReference ? TemplateAstDto.getRoot((ASTReference) alias) : null;
+    }
+
+    @Override
+    protected void put(InternalContextAdapter context, String key, Object value) {
+        // The loop variable is set once per iteration, next to the counter and hasNext values
+        if (key != null && key.equals(elementKey)) {
+            Context userContext = context.getInternalUserContext();
+            if (userContext instanceof RenderContext) {
+                ((RenderContext) userContext).getControl().countLoopIteration();
+            }
+        }
+        super.put(context, key, value);
+    }
+}
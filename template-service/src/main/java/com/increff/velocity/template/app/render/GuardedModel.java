@@ -0,0 +1,163 @@
+package com.increff.velocity.template.app.render;
+
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Views of the render model that check the {@link RenderControl} on every access.
+ * Velocity reads $data.* through Map.get and iterates #foreach lists and maps through their iterators, so a cancelled
+ * render stops within one property access instead of merging the rest of the template. Loop iterations are counted by
+ * {@link GuardedForeach}, not here, since Velocity also iterates the model for calls like $list.contains().
+ */
+public class GuardedModel {
+
+    private GuardedModel() {
+    }
+
+    public static Object wrap(Object value, RenderControl control) {
+        if (value instanceof GuardedMap || value instanceof GuardedList) {
+            return value;
+        }
+        if (value instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<Object, Object> map = (Map<Object, Object>) value;
+            return new GuardedMap(map, control);
+        }
+        if (value instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<Object> list = (List<Object>) value;
+            return new GuardedList(list, control);
+        }
+        return value;
+    }
+
+    private static class GuardedMap extends AbstractMap<Object, Object> {
+        private final Map<Object, Object> delegate;
+        private final RenderControl control;
+
+        private GuardedMap(Map<Object, Object> delegate, RenderControl control) {
+            this.delegate = delegate;
+            this.control = control;
+        }
+
+        @Override
+        public Object get(Object key) {
+            control.checkpoint();
+            return wrap(delegate.get(key), control);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return delegate.containsKey(key);
+        }
+
+        @Override
+        public Object put(Object key, Object value) {
+            return delegate.put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            return delegate.remove(key);
+        }
+
+        @Override
+        public int size() {
+            return delegate.size();
+        }
+
+        @Override
+        public Collection<Object> values() {
+            return new AbstractCollection<Object>() {
+                @Override
+                public Iterator<Object> iterator() {
+                    return new GuardedIterator(delegate.values().iterator(), control);
+                }
+
+                @Override
+                public int size() {
+                    return delegate.size();
+                }
+            };
+        }
+
+        @Override
+        public Set<Entry<Object, Object>> entrySet() {
+            control.checkpoint();
+            return delegate.entrySet();
+        }
+    }
+
+    private static class GuardedList extends AbstractList<Object> {
+        private final List<Object> delegate;
+        private final RenderControl control;
+
+        private GuardedList(List<Object> delegate, RenderControl control) {
+            this.delegate = delegate;
+            this.control = control;
+        }
+
+        @Override
+        public Object get(int index) {
+            control.checkpoint();
+            return wrap(delegate.get(index), control);
+        }
+
+        @Override
+        public int size() {
+            return delegate.size();
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new GuardedIterator(delegate.iterator(), control);
+        }
+
+        @Override
+        public Object set(int index, Object element) {
+            return delegate.set(index, element);
+        }
+
+        @Override
+        public void add(int index, Object element) {
+            delegate.add(index, element);
+        }
+
+        @Override
+        public Object remove(int index) {
+            return delegate.remove(index);
+        }
+    }
+
+    private static class GuardedIterator implements Iterator<Object> {
+        private final Iterator<Object> delegate;
+        private final RenderControl control;
+
+        private GuardedIterator(Iterator<Object> delegate, RenderControl control) {
+            this.delegate = delegate;
+            this.control = control;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public Object next() {
+            control.checkpoint();
+            return wrap(delegate.next(), control);
+        }
+
+        @Override
+        public void remove() {
+            delegate.remove();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.increff.velocity.template.app.render;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reader of the FO document that stops FOP's parsing once the render is cancelled
+ */
+public class GuardedReader extends FilterReader {
+
+    private final RenderControl control;
+
+    public GuardedReader(Reader in, RenderControl control) {
+        super(in);
+        this.control = control;
+    }
+
+    @Override
+    public int read() throws IOException {
+        control.checkpoint();
+        return super.read();
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        control.checkpoint();
+        return super.read(buffer, offset, length);
+    }
+}
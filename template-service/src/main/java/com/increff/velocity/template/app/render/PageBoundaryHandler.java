@@ -0,0 +1,27 @@
+package com.increff.velocity.template.app.render;
+
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.fop.render.intermediate.IFException;
+import org.apache.fop.render.intermediate.util.IFDocumentHandlerProxy;
+
+import java.awt.Dimension;
+
+/**
+ * Wraps FOP's PDF document handler to check the {@link RenderControl} and count pages each time layout starts a new
+ * page
+ */
+public class PageBoundaryHandler extends IFDocumentHandlerProxy {
+
+    private final RenderControl control;
+
+    public PageBoundaryHandler(IFDocumentHandler delegate, RenderControl control) {
+        super(delegate);
+        this.control = control;
+    }
+
+    @Override
+    public void startPage(int index, String name, String pageMasterName, Dimension size) throws IFException {
+        control.countPage();
+        super.startPage(index, name, pageMasterName, size);
+    }
+}
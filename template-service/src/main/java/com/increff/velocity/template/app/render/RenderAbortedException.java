@@ -0,0 +1,27 @@
+package com.increff.velocity.template.app.render;
+
+/**
+ * Thrown from inside the Velocity merge or the FOP run to stop a render that was cancelled.
+ * Velocity and FOP wrap it in their own exceptions, use {@link #find} to recognise it.
+ */
+public class RenderAbortedException extends RuntimeException {
+
+    public RenderAbortedException(String message) {
+        super(message);
+    }
+
+    /**
+     * @return The abort somewhere in the cause chain of the throwable, or null if the render failed for another reason
+     */
+    public static RenderAbortedException find(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RenderAbortedException) {
+                return (RenderAbortedException) cause;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,26 @@
+package com.increff.velocity.template.app.render;
+
+/**
+ * Thrown when a render goes over one of the limits of its {@link com.increff.velocity.template.app.model.RenderBudget}
+ */
+public class RenderBudgetExceededException extends RenderAbortedException {
+
+    public static final String TIME = "time";
+    public static final String FO_SIZE = "fo-size";
+    public static final String LOOP_ITERATIONS = "loop-iterations";
+    public static final String PAGES = "pages";
+
+    private final String budget;
+
+    public RenderBudgetExceededException(String budget, String message) {
+        super("Render budget exceeded: " + message);
+        this.budget = budget;
+    }
+
+    /**
+     * @return The limit that was exceeded, one of the constants of this class
+     */
+    public String getBudget() {
+        return budget;
+    }
+}
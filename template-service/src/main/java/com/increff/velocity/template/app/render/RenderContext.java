@@ -0,0 +1,19 @@
+package com.increff.velocity.template.app.render;
+
+import org.apache.velocity.VelocityContext;
+
+/**
+ * Velocity context of one render, carrying its {@link RenderControl} to the directives that check it
+ */
+public class RenderContext extends VelocityContext {
+
+    private final RenderControl control;
+
+    public RenderContext(RenderControl control) {
+        this.control = control;
+    }
+
+    public RenderControl getControl() {
+        return control;
+    }
+}
@@ -0,0 +1,178 @@
+package com.increff.velocity.template.app.render;
+
+import com.increff.velocity.template.app.model.RenderBudget;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cancellation token and budget of one render. The render checks it at its checkpoints: every model access, loop
+ * iteration and write during the Velocity merge, every image fetched, every read of the FO document and every page
+ * started by FOP.
+ * Cancellation is cooperative; the render thread is only interrupted while it waits for admission, so I/O in the
+ * render path is never interrupted.
+ */
+public class RenderControl {
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final int RUNNING = 0;
+    private static final int COMPLETED = 1;
+    private static final int CANCELLED = 2;
+
+    private final String previewKey;
+    private final long startNanos;
+    private final long startCpuNanos;
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+    private volatile String cancelReason;
+    private Thread waitingThread;
+    private RenderBudget budget;
+    private long deadlineNanos;
+    private long loopIterations;
+    private int pages;
+
+    public RenderControl(String previewKey) {
+        this.previewKey = previewKey;
+        this.startNanos = System.nanoTime();
+        this.startCpuNanos = getCurrentThreadCpuNanos();
+    }
+
+    public String getPreviewKey() {
+        return previewKey;
+    }
+
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    public String getCancelReason() {
+        return cancelReason;
+    }
+
+    /**
+     * Stop the render at its next checkpoint. A render still waiting for admission is interrupted. Has no effect once
+     * the render has completed.
+     */
+    public synchronized void cancel(String reason) {
+        if (state.get() != RUNNING) {
+            return;
+        }
+        cancelReason = reason;
+        if (state.compareAndSet(RUNNING, CANCELLED) && waitingThread != null) {
+            waitingThread.interrupt();
+        }
+    }
+
+    /**
+     * Mark the render as completed, after which it can no longer be cancelled
+     * @return false if the render was cancelled first
+     */
+    public boolean complete() {
+        return state.compareAndSet(RUNNING, COMPLETED) || state.get() == COMPLETED;
+    }
+
+    /**
+     * Called by the render thread before it blocks waiting for admission, the only wait a cancellation interrupts
+     * @throws RenderAbortedException If the render was already cancelled
+     */
+    public synchronized void beginWait() {
+        checkpoint();
+        waitingThread = Thread.currentThread();
+    }
+
+    /**
+     * Called by the render thread once it stops waiting. Clears an interrupt left by a cancellation, so it cannot
+     * reach later I/O or the pooled request thread.
+     */
+    public synchronized void endWait() {
+        waitingThread = null;
+        if (isCancelled()) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Start enforcing a budget. Called once the render is admitted, so time spent queued does not count.
+     */
+    public void startBudget(RenderBudget budget) {
+        this.budget = budget;
+        this.deadlineNanos = budget.getMaxMillis() > 0 ? System.nanoTime() + budget.getMaxMillis() * 1000000 : 0;
+    }
+
+    /**
+     * @throws RenderAbortedException If the render was cancelled
+     * @throws RenderBudgetExceededException If the render ran out of time
+     */
+    public void checkpoint() {
+        if (state.get() == CANCELLED) {
+            throw new RenderAbortedException(cancelReason);
+        }
+        if (deadlineNanos != 0 && System.nanoTime() - deadlineNanos > 0) {
+            throw new RenderBudgetExceededException(RenderBudgetExceededException.TIME,
+                    "render took longer than " + budget.getMaxMillis() + " ms");
+        }
+    }
+
+    /**
+     * Count an iteration of a #foreach
+     */
+    public void countLoopIteration() {
+        checkpoint();
+        loopIterations++;
+        if (budget != null && budget.getMaxLoopIterations() > 0 && loopIterations > budget.getMaxLoopIterations()) {
+            throw new RenderBudgetExceededException(RenderBudgetExceededException.LOOP_ITERATIONS,
+                    "more than " + budget.getMaxLoopIterations() + " loop iterations");
+        }
+    }
+
+    /**
+     * Check the size of the merged FO document, called as it is written
+     */
+    public void checkFoSize(long foChars) {
+        checkpoint();
+        if (budget != null && budget.getMaxFoChars() > 0 && foChars > budget.getMaxFoChars()) {
+            throw new RenderBudgetExceededException(RenderBudgetExceededException.FO_SIZE,
+                    "merged FO has " + foChars + " characters, more than " + budget.getMaxFoChars());
+        }
+    }
+
+    /**
+     * Count a page started by FOP
+     */
+    public void countPage() {
+        checkpoint();
+        pages++;
+        if (budget != null && budget.getMaxPages() > 0 && pages > budget.getMaxPages()) {
+            throw new RenderBudgetExceededException(RenderBudgetExceededException.PAGES,
+                    "more than " + budget.getMaxPages() + " pages");
+        }
+    }
+
+    public long getLoopIterations() {
+        return loopIterations;
+    }
+
+    /**
+     * End the render. A render that has not completed or been cancelled by now ended with an error; later cancellations
+     * have no effect on it.
+     */
+    public void finish() {
+        state.compareAndSet(RUNNING, COMPLETED);
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * @return The CPU time used by the render thread since the render started. Must be called on the render thread.
+     */
+    public long getCpuMillis() {
+        long cpuNanos = getCurrentThreadCpuNanos();
+        return cpuNanos < 0 || startCpuNanos < 0 ? getElapsedMillis() : (cpuNanos - startCpuNanos) / 1000000;
+    }
+
+    private static long getCurrentThreadCpuNanos() {
+        return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : -1;
+    }
+}
@@ -0,0 +1,22 @@
+package com.increff.velocity.template.app.render;
+
+import org.apache.velocity.tools.generic.DateTool;
+
+import java.util.TimeZone;
+
+/**
+ * $date of a render, formatting dates in the time zone of the render
+ */
+public class RenderDateTool extends DateTool {
+
+    private final TimeZone timeZone;
+
+    public RenderDateTool(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    @Override
+    public TimeZone getTimeZone() {
+        return timeZone;
+    }
+}
@@ -0,0 +1,34 @@
+package com.increff.velocity.template.app.render;
+
+/**
+ * Replacement of a range of the merged FO, applied by {@link BudgetWriter#newReader} while FOP reads the document
+ */
+public class TextEdit {
+
+    private final int start;
+    private final int end;
+    private final String replacement;
+
+    /**
+     * @param start The index of the first character replaced
+     * @param end The index after the last character replaced
+     * @param replacement The text read instead
+     */
+    public TextEdit(int start, int end, String replacement) {
+        this.start = start;
+        this.end = end;
+        this.replacement = replacement;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public String getReplacement() {
+        return replacement;
+    }
+}
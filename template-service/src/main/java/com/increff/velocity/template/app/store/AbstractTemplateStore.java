@@ -0,0 +1,40 @@
+package com.increff.velocity.template.app.store;
+
+import com.increff.velocity.template.app.model.TemplateVersion;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+public abstract class AbstractTemplateStore implements TemplateStore {
+
+    private static final Pattern TEMPLATE_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
+
+    private final List<TemplateChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void addChangeListener(TemplateChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    protected void notifyChanged(String templateName) {
+        for (TemplateChangeListener listener : listeners) {
+            try {
+                listener.onTemplateChanged(templateName);
+            } catch (RuntimeException e) {
+                System.out.println("Template change listener failed for " + templateName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    protected static TemplateVersion getLatest(List<TemplateVersion> versions) {
+        return versions.isEmpty() ? null : versions.get(versions.size() - 1);
+    }
+
+    protected static void validateName(String templateName) throws IOException {
+        if (templateName == null || !TEMPLATE_NAME.matcher(templateName).matches()) {
+            throw new IOException("Invalid template name: " + templateName);
+        }
+    }
+}
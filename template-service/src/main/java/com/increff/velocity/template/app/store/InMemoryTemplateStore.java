@@ -0,0 +1,85 @@
+package com.increff.velocity.template.app.store;
+
+import com.increff.velocity.template.app.model.TemplateVersion;
+import com.increff.velocity.template.app.util.HashUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local embedded store for tests and single node development. Nothing is persisted.
+ */
+public class InMemoryTemplateStore extends AbstractTemplateStore {
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, List<TemplateVersion>> refs = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> artifacts = new ConcurrentHashMap<>();
+
+    @Override
+    public TemplateVersion save(String templateName, byte[] content) throws IOException {
+        validateName(templateName);
+        String versionId = HashUtil.sha256(content);
+        TemplateVersion version;
+        List<TemplateVersion> versions = refs.computeIfAbsent(templateName, name -> new ArrayList<>());
+        synchronized (versions) {
+            TemplateVersion latest = getLatest(versions);
+            if (latest != null && latest.getVersionId().equals(versionId)) {
+                return latest;
+            }
+            objects.putIfAbsent(versionId, content.clone());
+            version = new TemplateVersion(templateName, versionId, content.length, System.currentTimeMillis());
+            versions.add(version);
+        }
+        notifyChanged(templateName);
+        return version;
+    }
+
+    @Override
+    public List<String> getTemplateNames() {
+        List<String> names = new ArrayList<>(refs.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public List<TemplateVersion> getVersions(String templateName) {
+        List<TemplateVersion> versions = refs.get(templateName);
+        if (versions == null) {
+            return new ArrayList<>();
+        }
+        synchronized (versions) {
+            return new ArrayList<>(versions);
+        }
+    }
+
+    @Override
+    public byte[] getContent(String templateName, String versionId) {
+        for (TemplateVersion version : getVersions(templateName)) {
+            if (version.getVersionId().equals(versionId)) {
+                byte[] content = objects.get(versionId);
+                return content != null ? content.clone() : null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void saveArtifact(String versionId, String artifactName, byte[] content) throws IOException {
+        validateName(artifactName);
+        artifacts.put(versionId + "/" + artifactName, content.clone());
+    }
+
+    @Override
+    public byte[] getArtifact(String versionId, String artifactName) {
+        byte[] content = artifacts.get(versionId + "/" + artifactName);
+        return content != null ? content.clone() : null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
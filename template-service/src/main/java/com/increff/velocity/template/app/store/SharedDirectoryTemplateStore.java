@@ -0,0 +1,229 @@
+package com.increff.velocity.template.app.store;
+
+import com.increff.velocity.template.app.model.TemplateVersion;
+import com.increff.velocity.template.app.util.HashUtil;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Template store on a directory shared by all nodes, e.g. an NFS or EFS mount.
+ * <pre>
+ * objects/&lt;sha256&gt;       immutable template content
+ * refs/&lt;template name&gt;   one line per version, "&lt;sha256&gt; &lt;size&gt; &lt;created at&gt;", oldest first
+ * locks/&lt;template name&gt;  empty file locked while a version is added to the refs
+ * artifacts/&lt;sha256&gt;/     files built from a version, e.g. its validation report
+ * </pre>
+ * Every node polls the refs directory and notifies its listeners of templates saved by other nodes.
+ */
+public class SharedDirectoryTemplateStore extends AbstractTemplateStore {
+
+    private final Path objectsDirectory;
+    private final Path refsDirectory;
+    private final Path locksDirectory;
+    private final Path artifactsDirectory;
+    private final long pollIntervalMillis;
+    private final Map<String, String> refSignatures = new HashMap<>();
+    private ScheduledExecutorService poller;
+
+    public SharedDirectoryTemplateStore(Path rootDirectory, long pollIntervalMillis) {
+        this.objectsDirectory = rootDirectory.resolve("objects");
+        this.refsDirectory = rootDirectory.resolve("refs");
+        this.locksDirectory = rootDirectory.resolve("locks");
+        this.artifactsDirectory = rootDirectory.resolve("artifacts");
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    public void start() throws IOException {
+        Files.createDirectories(objectsDirectory);
+        Files.createDirectories(refsDirectory);
+        Files.createDirectories(locksDirectory);
+        Files.createDirectories(artifactsDirectory);
+        synchronized (refSignatures) {
+            refSignatures.putAll(readRefSignatures());
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "template-store-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::poll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+    }
+
+    @Override
+    public TemplateVersion save(String templateName, byte[] content) throws IOException {
+        TemplateVersion version = writeVersion(templateName, content);
+        poll();
+        return version;
+    }
+
+    /**
+     * Add the version under the refs lock. The file lock serializes saves across nodes, the monitor serializes them
+     * within this JVM where file locks are not reentrant.
+     */
+    private synchronized TemplateVersion writeVersion(String templateName, byte[] content) throws IOException {
+        validateName(templateName);
+        String versionId = HashUtil.sha256(content);
+        Path object = objectsDirectory.resolve(versionId);
+        if (!Files.exists(object)) {
+            writeAtomically(object, content);
+        }
+
+        TemplateVersion version;
+        Path ref = refsDirectory.resolve(templateName);
+        try (FileChannel lockChannel = FileChannel.open(locksDirectory.resolve(templateName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = lockChannel.lock()) {
+            List<TemplateVersion> versions = readVersions(templateName);
+            TemplateVersion latest = getLatest(versions);
+            if (latest != null && latest.getVersionId().equals(versionId)) {
+                return latest;
+            }
+            version = new TemplateVersion(templateName, versionId, content.length, System.currentTimeMillis());
+            versions.add(version);
+            StringBuilder lines = new StringBuilder();
+            for (TemplateVersion existing : versions) {
+                lines.append(existing.getVersionId()).append(' ').append(existing.getSize()).append(' ')
+                        .append(existing.getCreatedAt()).append('\n');
+            }
+            writeAtomically(ref, lines.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return version;
+    }
+
+    @Override
+    public List<String> getTemplateNames() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> refs = Files.newDirectoryStream(refsDirectory)) {
+            for (Path ref : refs) {
+                String name = ref.getFileName().toString();
+                // Temporary files start with a dot. A ref always has a version, an empty file is a lock left in the
+                // refs directory by an older release.
+                if (!name.startsWith(".") && Files.size(ref) > 0) {
+                    names.add(name);
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public List<TemplateVersion> getVersions(String templateName) throws IOException {
+        validateName(templateName);
+        return readVersions(templateName);
+    }
+
+    @Override
+    public byte[] getContent(String templateName, String versionId) throws IOException {
+        for (TemplateVersion version : getVersions(templateName)) {
+            if (version.getVersionId().equals(versionId)) {
+                return Files.readAllBytes(objectsDirectory.resolve(versionId));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void saveArtifact(String versionId, String artifactName, byte[] content) throws IOException {
+        validateName(versionId);
+        validateName(artifactName);
+        Path directory = artifactsDirectory.resolve(versionId);
+        Files.createDirectories(directory);
+        writeAtomically(directory.resolve(artifactName), content);
+    }
+
+    @Override
+    public byte[] getArtifact(String versionId, String artifactName) throws IOException {
+        validateName(versionId);
+        validateName(artifactName);
+        Path artifact = artifactsDirectory.resolve(versionId).resolve(artifactName);
+        return Files.exists(artifact) ? Files.readAllBytes(artifact) : null;
+    }
+
+    private List<TemplateVersion> readVersions(String templateName) throws IOException {
+        List<TemplateVersion> versions = new ArrayList<>();
+        Path ref = refsDirectory.resolve(templateName);
+        if (!Files.exists(ref)) {
+            return versions;
+        }
+        for (String line : Files.readAllLines(ref, StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length == 3) {
+                versions.add(new TemplateVersion(templateName, fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Compare the refs with the last poll and notify listeners of every template whose refs file changed
+     */
+    private void poll() {
+        List<String> changed = new ArrayList<>();
+        try {
+            Map<String, String> signatures = readRefSignatures();
+            synchronized (refSignatures) {
+                for (Map.Entry<String, String> entry : signatures.entrySet()) {
+                    if (!entry.getValue().equals(refSignatures.get(entry.getKey()))) {
+                        changed.add(entry.getKey());
+                    }
+                }
+                refSignatures.clear();
+                refSignatures.putAll(signatures);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error polling template store: " + e.getMessage());
+        }
+        for (String templateName : changed) {
+            notifyChanged(templateName);
+        }
+    }
+
+    private Map<String, String> readRefSignatures() throws IOException {
+        Map<String, String> signatures = new HashMap<>();
+        for (String templateName : getTemplateNames()) {
+            BasicFileAttributes attributes = Files.readAttributes(refsDirectory.resolve(templateName), BasicFileAttributes.class);
+            signatures.put(templateName, attributes.size() + ":" + attributes.lastModifiedTime().toMillis());
+        }
+        return signatures;
+    }
+
+    private static void writeAtomically(Path target, byte[] content) throws IOException {
+        Path temporary = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        try {
+            Files.write(temporary, content);
+            try {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
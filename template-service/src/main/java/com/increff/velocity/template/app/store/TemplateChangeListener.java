@@ -0,0 +1,10 @@
+package com.increff.velocity.template.app.store;
+
+public interface TemplateChangeListener {
+
+    /**
+     * Called when a new version of a template was saved, on this node or on another node sharing the store
+     * @param templateName The template that changed
+     */
+    void onTemplateChanged(String templateName);
+}
@@ -0,0 +1,54 @@
+package com.increff.velocity.template.app.store;
+
+import com.increff.velocity.template.app.model.TemplateVersion;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Versioned storage for uploaded templates.
+ * Versions are immutable and identified by the SHA-256 of their content, so a version id always refers to the same
+ * bytes on every node.
+ */
+public interface TemplateStore {
+
+    /**
+     * Save content as the latest version of a template. Saving the content of the latest version again is a no-op.
+     * @param templateName The template file name, e.g. "crocs_invoice_template.fo.vm"
+     * @param content The template source
+     * @return The saved version
+     */
+    TemplateVersion save(String templateName, byte[] content) throws IOException;
+
+    /**
+     * @return The names of all stored templates
+     */
+    List<String> getTemplateNames() throws IOException;
+
+    /**
+     * @return The versions of a template, oldest first, or an empty list if it is not stored
+     */
+    List<TemplateVersion> getVersions(String templateName) throws IOException;
+
+    /**
+     * @return The content of a version of a template, or null if the template has no such version
+     */
+    byte[] getContent(String templateName, String versionId) throws IOException;
+
+    /**
+     * Save a file built from a version, e.g. the result of compiling it at upload. Saving an artifact again replaces it.
+     * @param versionId The version the artifact was built from
+     * @param artifactName The artifact file name, e.g. "validation.json"
+     * @param content The artifact
+     */
+    void saveArtifact(String versionId, String artifactName, byte[] content) throws IOException;
+
+    /**
+     * @return The artifact built from a version, or null if it was never saved
+     */
+    byte[] getArtifact(String versionId, String artifactName) throws IOException;
+
+    void addChangeListener(TemplateChangeListener listener);
+
+    void close();
+}
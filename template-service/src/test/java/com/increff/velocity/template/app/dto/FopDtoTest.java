@@ -0,0 +1,77 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.RenderBudget;
+import com.increff.velocity.template.app.render.RenderAbortedException;
+import com.increff.velocity.template.app.render.RenderBudgetExceededException;
+import com.increff.velocity.template.app.render.RenderControl;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import javax.xml.transform.TransformerException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FopDtoTest {
+
+    private FopDto fopDto;
+
+    @Before
+    public void setUp() {
+        fopDto = new FopDto();
+    }
+
+    @Test
+    public void testPageCount() throws Exception {
+        assertEquals(5, convert(pages(5), newControl(0)));
+    }
+
+    @Test
+    public void testPageBudget() throws Exception {
+        try {
+            convert(pages(5), newControl(2));
+            fail("Render did not exceed the page budget");
+        } catch (RenderBudgetExceededException e) {
+            assertEquals(RenderBudgetExceededException.PAGES, e.getBudget());
+        }
+    }
+
+    /**
+     * Lay out a document the way renders do, with the abort of a render unwrapped from FOP's exceptions
+     */
+    private int convert(String fo, RenderControl control) throws Exception {
+        try {
+            return fopDto.convertToPdf(new StringReader(fo), false, new ByteArrayOutputStream(), control, new HashMap<>());
+        } catch (TransformerException | SAXException | IOException e) {
+            RenderAbortedException aborted = RenderAbortedException.find(e);
+            if (aborted != null) {
+                throw aborted;
+            }
+            throw e;
+        }
+    }
+
+    private static RenderControl newControl(int maxPages) {
+        RenderBudget budget = new RenderBudget();
+        budget.setMaxPages(maxPages);
+        RenderControl control = new RenderControl(null);
+        control.startBudget(budget);
+        return control;
+    }
+
+    private static String pages(int count) {
+        StringBuilder fo = new StringBuilder("<fo:root xmlns:fo=\"http://www.w3.org/1999/XSL/Format\">"
+                + "<fo:layout-master-set><fo:simple-page-master master-name=\"page\" page-height=\"10cm\" page-width=\"10cm\">"
+                + "<fo:region-body/></fo:simple-page-master></fo:layout-master-set>"
+                + "<fo:page-sequence master-reference=\"page\"><fo:flow flow-name=\"xsl-region-body\">");
+        for (int i = 0; i < count; i++) {
+            fo.append(i > 0 ? "<fo:block break-before=\"page\">" : "<fo:block>").append(i + 1).append("</fo:block>");
+        }
+        return fo.append("</fo:flow></fo:page-sequence></fo:root>").toString();
+    }
+}
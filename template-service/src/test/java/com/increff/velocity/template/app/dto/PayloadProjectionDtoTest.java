@@ -0,0 +1,74 @@
+package com.increff.velocity.template.app.dto;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.increff.velocity.template.app.model.PayloadProjection;
+import com.increff.velocity.template.app.model.RenderReport;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadProjectionDtoTest {
+
+    private PayloadProjectionDto payloadProjectionDto;
+
+    @Before
+    public void setUp() {
+        TemplateAstDto templateAstDto = new TemplateAstDto();
+        templateAstDto.init();
+        payloadProjectionDto = new PayloadProjectionDto();
+        ReflectionTestUtils.setField(payloadProjectionDto, "templateAstDto", templateAstDto);
+        ReflectionTestUtils.setField(payloadProjectionDto, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(payloadProjectionDto, "enabled", true);
+        payloadProjectionDto.init();
+    }
+
+    @Test
+    public void testBundledTemplatePaths() throws IOException {
+        PayloadProjection projection = payloadProjectionDto.getProjection("crocs_invoice_template.fo.vm",
+                readTemplate("templates/crocs_invoice_template.fo.vm"));
+
+        assertFalse(projection.getReason(), projection.isFullPayload());
+        List<String> paths = projection.getPaths();
+        // Read directly, through a #foreach alias and through a macro parameter
+        assertTrue(paths.toString(), paths.containsAll(Arrays.asList(
+                "data.currency", "data.itemLines[].vendorSku", "data.billingAddress.city")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCountedMapKeptWhole() throws IOException {
+        String template = "$data.meta.size() #foreach($item in $data.items)#if($item.items.isEmpty())x#end#end";
+        String json = "{\"meta\":{\"a\":1,\"b\":2},\"items\":[{\"items\":[1,2],\"name\":\"n\"},{\"items\":[]}],\"other\":1}";
+        Map<String, Object> form = (Map<String, Object>) payloadProjectionDto.readPayload("test.fo.vm", template, json,
+                new RenderReport("test.fo.vm"));
+
+        assertFalse(form.containsKey("other"));
+        assertEquals(2, ((Map<String, Object>) form.get("meta")).size());
+        List<Object> items = (List<Object>) form.get("items");
+        assertEquals(2, items.size());
+        // Arrays keep their elements, the fields nothing reads are dropped
+        Map<String, Object> first = (Map<String, Object>) items.get(0);
+        assertEquals(2, ((List<Object>) first.get("items")).size());
+        assertFalse(first.containsKey("name"));
+    }
+
+    private static String readTemplate(String path) throws IOException {
+        try (Reader reader = new InputStreamReader(new ClassPathResource(path).getInputStream(), StandardCharsets.UTF_8)) {
+            return FileCopyUtils.copyToString(reader);
+        }
+    }
+}
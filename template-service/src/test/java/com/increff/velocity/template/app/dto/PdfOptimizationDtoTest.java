@@ -0,0 +1,76 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.PdfOptimizationProfile;
+import com.increff.velocity.template.app.model.RenderReport;
+import com.increff.velocity.template.app.render.BudgetWriter;
+import com.increff.velocity.template.app.render.BufferPool;
+import com.increff.velocity.template.app.render.RenderControl;
+import com.increff.velocity.template.app.render.TextEdit;
+import com.increff.velocity.template.app.util.HashUtil;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PdfOptimizationDtoTest {
+
+    private PdfOptimizationDto pdfOptimizationDto;
+    private PdfOptimizationProfile profile;
+
+    @Before
+    public void setUp() {
+        pdfOptimizationDto = new PdfOptimizationDto();
+        profile = new PdfOptimizationProfile(true, 150, 0.8f, true, true);
+    }
+
+    @Test
+    public void testContentThatIsNotAnImageKeepsItsTag() throws IOException {
+        String fo = "<fo:block><fo:external-graphic src=\"url('classpath:sample-invoice.json')\"/></fo:block>";
+        Map<String, byte[]> images = new HashMap<>();
+
+        String optimized = optimize(fo, images);
+
+        assertEquals(fo, optimized);
+        assertTrue(images.isEmpty());
+    }
+
+    @Test
+    public void testUnavailableImageIsNotFetchedAgain() throws IOException {
+        String fo = "<fo:external-graphic src=\"url('classpath:missing.png?size=1&amp;v=2')\"/>";
+
+        String optimized = optimize(fo, new HashMap<>());
+
+        // The entity is unescaped before the source is fetched
+        String id = "unavailable-" + HashUtil.sha256("classpath:missing.png?size=1&v=2");
+        assertEquals("<fo:external-graphic src=\"url('" + PdfOptimizationDto.IMAGE_URI_SCHEME + ":" + id + "')\"/>",
+                optimized);
+    }
+
+    @Test
+    public void testOptimizeAttributeRemovedWhenDisabled() throws IOException {
+        String fo = "<fo:block/><fo:external-graphic optimize=\"false\" src=\"url('classpath:logo.png')\"/><fo:block/>";
+        profile = new PdfOptimizationProfile(false, 150, 0.8f, true, true);
+
+        assertEquals("<fo:block/><fo:external-graphic src=\"url('classpath:logo.png')\"/><fo:block/>",
+                optimize(fo, new HashMap<>()));
+    }
+
+    /**
+     * Optimize a document the way renders do, read back through FOP's reader with the rewritten tags applied
+     */
+    private String optimize(String fo, Map<String, byte[]> images) throws IOException {
+        RenderControl control = new RenderControl(null);
+        BudgetWriter writer = new BudgetWriter(control, new BufferPool(false, 0), 64);
+        writer.write(fo);
+        List<TextEdit> edits = pdfOptimizationDto.optimizeImages(writer, profile, new RenderReport("test.fo.vm"),
+                images, control);
+        return FileCopyUtils.copyToString(writer.newReader(edits));
+    }
+}
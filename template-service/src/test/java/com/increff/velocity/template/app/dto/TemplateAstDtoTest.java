@@ -0,0 +1,186 @@
+package com.increff.velocity.template.app.dto;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.increff.commons.template.util.VelocityUtil;
+import com.increff.velocity.template.app.model.RenderBudget;
+import com.increff.velocity.template.app.render.BudgetWriter;
+import com.increff.velocity.template.app.render.BufferPool;
+import com.increff.velocity.template.app.render.RenderAbortedException;
+import com.increff.velocity.template.app.render.RenderBudgetExceededException;
+import com.increff.velocity.template.app.render.RenderControl;
+import org.apache.velocity.Template;
+import org.apache.velocity.exception.VelocityException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TemplateAstDtoTest {
+
+    private static final String TIME_ZONE = "Asia/Kolkata";
+
+    private TemplateAstDto templateAstDto;
+
+    @Before
+    public void setUp() {
+        templateAstDto = new TemplateAstDto();
+        templateAstDto.init();
+    }
+
+    @Test
+    public void testBundledTemplatesRenderUnchanged() throws Exception {
+        Resource[] templates = new PathMatchingResourcePatternResolver().getResources("classpath:templates/*.fo.vm");
+        assertTrue(templates.length > 0);
+        List<String> changed = new ArrayList<>();
+        int rendered = 0;
+        for (Resource resource : templates) {
+            String templateName = resource.getFilename();
+            String content = read(resource);
+            String sample = "sample-" + (templateName.contains("label") ? "label" : "invoice") + ".json";
+
+            // The FO merged by the shared engine of commons-template, which renders used before
+            String expected;
+            try {
+                VelocityUtil.setTimezone(TIME_ZONE);
+                expected = VelocityUtil.processString(readSample(sample), content);
+            } catch (Exception e) {
+                expected = null;
+            }
+            String actual;
+            try {
+                actual = merge(templateName, content, readSample(sample), new RenderControl(null));
+            } catch (Exception e) {
+                actual = null;
+            }
+            if (expected == null ? actual != null : !expected.equals(actual)) {
+                changed.add(templateName);
+            }
+            if (expected != null) {
+                rendered++;
+            }
+        }
+        assertTrue("Rendered differently: " + changed, changed.isEmpty());
+        assertTrue(rendered > 0);
+    }
+
+    @Test
+    public void testTimeBudget() throws Exception {
+        RenderControl control = newControl(1, 0, 0);
+        assertBudgetExceeded(RenderBudgetExceededException.TIME,
+                () -> merge("test.fo.vm", "#foreach($i in [1..10000])#foreach($j in [1..10000])#end#end", null, control));
+    }
+
+    @Test
+    public void testFoSizeBudget() throws Exception {
+        RenderControl control = newControl(0, 1000, 0);
+        assertBudgetExceeded(RenderBudgetExceededException.FO_SIZE,
+                () -> merge("test.fo.vm", "#foreach($i in [1..1000])<fo:block/>#end", null, control));
+    }
+
+    @Test
+    public void testLoopBudget() throws Exception {
+        RenderControl control = newControl(0, 0, 100);
+        // Nested loops over literal ranges, no single loop goes over the budget
+        assertBudgetExceeded(RenderBudgetExceededException.LOOP_ITERATIONS,
+                () -> merge("test.fo.vm", "#foreach($i in [1..20])#foreach($j in [1..20])x#end#end", null, control));
+        assertEquals(101, control.getLoopIterations());
+    }
+
+    @Test
+    public void testLongLoopsAreNotTruncated() throws Exception {
+        String fo = merge("test.fo.vm", "#foreach($i in [1..100000])x#end", null, newControl(0, 0, 0));
+
+        assertEquals(100000, fo.length());
+    }
+
+    @Test
+    public void testConcurrentFirstRendersShareOneParse() throws Exception {
+        String content = "#macro(cell $value)<fo:block>$value</fo:block>#end#cell('a')";
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Template>> templates = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                templates.add(executor.submit(() -> {
+                    start.await();
+                    return templateAstDto.getTemplate("test.fo.vm", content);
+                }));
+            }
+            start.countDown();
+            for (Future<Template> template : templates) {
+                assertSame(templates.get(0).get(), template.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals("<fo:block>a</fo:block>", merge("test.fo.vm", content, null, new RenderControl(null)));
+    }
+
+    /**
+     * Merge a template the way renders do, with the abort of a render unwrapped from Velocity's exceptions
+     */
+    private String merge(String templateName, String content, Object form, RenderControl control) throws Exception {
+        BudgetWriter writer = new BudgetWriter(control, new BufferPool(false, 0), 16 * 1024);
+        try {
+            templateAstDto.getTemplate(templateName, content)
+                    .merge(PdfDto.newContext(form, TIME_ZONE, control), writer);
+        } catch (VelocityException e) {
+            RenderAbortedException aborted = RenderAbortedException.find(e);
+            if (aborted != null) {
+                throw aborted;
+            }
+            throw e;
+        }
+        return writer.toString();
+    }
+
+    private static RenderControl newControl(long maxMillis, long maxFoChars, long maxLoopIterations) {
+        RenderBudget budget = new RenderBudget();
+        budget.setMaxMillis(maxMillis);
+        budget.setMaxFoChars(maxFoChars);
+        budget.setMaxLoopIterations(maxLoopIterations);
+        RenderControl control = new RenderControl(null);
+        control.startBudget(budget);
+        return control;
+    }
+
+    private static void assertBudgetExceeded(String budget, Callable<?> render) throws Exception {
+        try {
+            render.call();
+            fail("Render did not exceed the " + budget + " budget");
+        } catch (RenderBudgetExceededException e) {
+            assertEquals(budget, e.getBudget());
+        }
+    }
+
+    private static Object readSample(String path) throws IOException {
+        Object form = new ObjectMapper().readValue(read(new ClassPathResource(path)), Object.class);
+        PdfDto.convertDateFields(form);
+        return form;
+    }
+
+    private static String read(Resource resource) throws IOException {
+        try (Reader reader = new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8)) {
+            return FileCopyUtils.copyToString(reader);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.TemplateVersion;
+import com.increff.velocity.template.app.store.InMemoryTemplateStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TemplateCatalogDtoTest {
+
+    private InMemoryTemplateStore templateStore;
+    private TemplateCatalogDto templateCatalogDto;
+
+    @Before
+    public void setUp() {
+        templateStore = new InMemoryTemplateStore();
+        templateCatalogDto = new TemplateCatalogDto();
+        ReflectionTestUtils.setField(templateCatalogDto, "templateStore", templateStore);
+        templateCatalogDto.init();
+    }
+
+    @Test
+    public void testPinnedVersionReadAfterNewerSave() throws IOException {
+        TemplateVersion first = templateCatalogDto.save("invoice.fo.vm", bytes("v1"));
+        TemplateVersion second = templateCatalogDto.save("invoice.fo.vm", bytes("v2"));
+
+        assertEquals("v2", templateCatalogDto.getContent("invoice.fo.vm", null));
+        assertEquals("v1", templateCatalogDto.getContent("invoice.fo.vm", first.getVersionId()));
+        assertEquals(second.getVersionId(), templateCatalogDto.getLatestVersion("invoice.fo.vm").getVersionId());
+    }
+
+    @Test
+    public void testUnknownVersion() throws IOException {
+        templateCatalogDto.save("invoice.fo.vm", bytes("v1"));
+
+        assertNull(templateCatalogDto.getContent("invoice.fo.vm", "0000"));
+        assertNull(templateCatalogDto.getContent("missing.fo.vm", null));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownVersionRejectedForRender() throws IOException {
+        templateCatalogDto.save("invoice.fo.vm", bytes("v1"));
+        TemplateDto templateDto = new TemplateDto();
+        ReflectionTestUtils.setField(templateDto, "templateCatalogDto", templateCatalogDto);
+
+        // Never falls back to the latest version or the bundled template
+        templateDto.getTemplateContent("invoice.fo.vm", "0000");
+    }
+
+    @Test
+    public void testSavesByOtherNodesAreSeen() throws IOException {
+        // Saved on the store directly, as another node would, and picked up through the change notification
+        TemplateVersion version = templateStore.save("label.fo.vm", bytes("label"));
+
+        assertEquals(version.getVersionId(), templateCatalogDto.getLatestVersion("label.fo.vm").getVersionId());
+        assertEquals(Arrays.asList("label.fo.vm"), templateCatalogDto.getTemplateNames());
+        assertEquals("label", templateCatalogDto.getContent("label.fo.vm", null));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,88 @@
+package com.increff.velocity.template.app.dto;
+
+import com.increff.velocity.template.app.model.LoopCost;
+import com.increff.velocity.template.app.model.TemplateCostProfile;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TemplateCostDtoTest {
+
+    private TemplateCostDto templateCostDto;
+
+    @Before
+    public void setUp() {
+        TemplateAstDto templateAstDto = new TemplateAstDto();
+        templateAstDto.init();
+        templateCostDto = new TemplateCostDto();
+        ReflectionTestUtils.setField(templateCostDto, "templateAstDto", templateAstDto);
+    }
+
+    @Test
+    public void testBundledTemplateLoops() throws IOException {
+        TemplateCostProfile profile = templateCostDto.getProfile("crocs_invoice_template.fo.vm",
+                readTemplate("templates/crocs_invoice_template.fo.vm"));
+
+        assertTrue(profile.isAnalyzed());
+        List<String> sources = new ArrayList<>();
+        for (LoopCost loop : profile.getLoops()) {
+            sources.add(loop.getSourceRoot() + ":" + String.join(".", loop.getSourcePath()));
+        }
+        assertTrue(sources.toString(), sources.containsAll(Arrays.asList(
+                "data:invoiceMetaData", "data:itemLines", "data:serviceLines")));
+    }
+
+    @Test
+    public void testMacroArgumentsAndAliases() {
+        String template = "#macro(writeTaxes $lines)#foreach($tax in $lines)$tax.rate#end#end"
+                + "#foreach($item in $data.itemLines)#writeTaxes($item.taxItems)#end"
+                + "#foreach($i in [1..5])$i#end";
+        TemplateCostProfile profile = templateCostDto.getProfile("test.fo.vm", template);
+
+        assertTrue(profile.isAnalyzed());
+        assertEquals(2, profile.getLoops().size());
+        LoopCost items = profile.getLoops().get(0);
+        assertEquals("item", items.getAlias());
+        assertEquals("data", items.getSourceRoot());
+        assertEquals(Arrays.asList("itemLines"), items.getSourcePath());
+        assertEquals(1, items.getChildren().size());
+        LoopCost taxes = items.getChildren().get(0);
+        assertEquals("tax", taxes.getAlias());
+        // Sized from each item while the outer loop is expanded
+        assertEquals("item", taxes.getSourceRoot());
+        assertEquals(Arrays.asList("taxItems"), taxes.getSourcePath());
+        assertEquals(5, profile.getLoops().get(1).getRangeSize());
+    }
+
+    @Test
+    public void testVersionsHaveTheirOwnTimingModel() {
+        TemplateCostProfile previous = templateCostDto.getProfile("test.fo.vm", "#foreach($item in $data.itemLines)$item#end");
+        TemplateCostProfile current = templateCostDto.getProfile("test.fo.vm", "#foreach($item in $data.itemLines)$item.name#end");
+        for (int i = 0; i < 10; i++) {
+            templateCostDto.recordObservation(previous, 100, 2000);
+            templateCostDto.recordObservation(current, 100, 20);
+        }
+
+        assertEquals(2000, templateCostDto.predictMillis(previous, 100));
+        assertEquals(20, templateCostDto.predictMillis(current, 100));
+    }
+
+    private static String readTemplate(String path) throws IOException {
+        try (Reader reader = new InputStreamReader(new ClassPathResource(path).getInputStream(), StandardCharsets.UTF_8)) {
+            return FileCopyUtils.copyToString(reader);
+        }
+    }
+}
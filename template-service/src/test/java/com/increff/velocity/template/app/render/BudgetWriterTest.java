@@ -0,0 +1,141 @@
+package com.increff.velocity.template.app.render;
+
+import com.increff.velocity.template.app.model.RenderBudget;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BudgetWriterTest {
+
+    private static final int CHUNK_SIZE = 64;
+    private static final int FO_CHARS = 2 * 1024 * 1024;
+    private static final int RUNS = 5;
+
+    private BufferPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new BufferPool(false, 64L * 1024 * 1024);
+    }
+
+    @Test
+    public void testReadAcrossChunks() throws IOException {
+        BudgetWriter writer = new BudgetWriter(new RenderControl(null), pool, CHUNK_SIZE);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String block = "<fo:block>" + i + " حسين</fo:block>";
+            writer.write(block);
+            expected.append(block);
+        }
+
+        assertEquals(expected.length(), writer.length());
+        assertEquals(expected.toString(), writer.toString());
+        assertEquals(expected.charAt(1000), writer.charAt(1000));
+        assertEquals(expected.toString(), FileCopyUtils.copyToString(writer.newReader(null)));
+        writer.release();
+    }
+
+    @Test
+    public void testEditsAppliedWhileReading() throws IOException {
+        BudgetWriter writer = new BudgetWriter(new RenderControl(null), pool, CHUNK_SIZE);
+        String fo = "<fo:block><fo:external-graphic src=\"a.png\"/></fo:block><fo:external-graphic src=\"b.png\"/>";
+        writer.write(fo);
+        int first = fo.indexOf("<fo:external-graphic");
+        int second = fo.lastIndexOf("<fo:external-graphic");
+
+        Reader reader = writer.newReader(Arrays.asList(
+                new TextEdit(first, fo.indexOf("/>", first) + 2, "<fo:external-graphic src=\"pdfopt:1\"/>"),
+                new TextEdit(second, fo.length(), "")));
+
+        assertEquals("<fo:block><fo:external-graphic src=\"pdfopt:1\"/></fo:block>", FileCopyUtils.copyToString(reader));
+        writer.release();
+    }
+
+    @Test
+    public void testFoSizeBudget() throws IOException {
+        RenderBudget budget = new RenderBudget();
+        budget.setMaxFoChars(100);
+        RenderControl control = new RenderControl(null);
+        control.startBudget(budget);
+        BudgetWriter writer = new BudgetWriter(control, pool, CHUNK_SIZE);
+        try {
+            for (int i = 0; i < 20; i++) {
+                writer.write("<fo:block/>");
+            }
+            fail("Writer did not exceed the FO size budget");
+        } catch (RenderBudgetExceededException e) {
+            assertEquals(RenderBudgetExceededException.FO_SIZE, e.getBudget());
+            // Checked before the write that would go over the budget
+            assertEquals(99, writer.length());
+        } finally {
+            writer.release();
+        }
+    }
+
+    /**
+     * Allocation per document of the FO path before the pooled buffers, a growing StringBuilder copied into a String and
+     * copied again by the image rewrite, against the pooled path once the pool is warm. Both are read the way FOP reads
+     * the document.
+     */
+    @Test
+    public void testAllocatedBytesPerDocument() throws IOException {
+        com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+        Assume.assumeTrue(threadMXBean != null && threadMXBean.isThreadAllocatedMemoryEnabled());
+        long threadId = Thread.currentThread().getId();
+        char[] line = "<fo:block>Item line</fo:block>\n".toCharArray();
+        char[] readBuffer = new char[8192];
+
+        long stringBytes = Long.MAX_VALUE;
+        long chunkedBytes = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = threadMXBean.getThreadAllocatedBytes(threadId);
+            StringBuilder builder = new StringBuilder();
+            for (int length = 0; length < FO_CHARS; length += line.length) {
+                builder.append(line, 0, line.length);
+            }
+            String fo = builder.toString();
+            String optimized = new StringBuffer(fo.length()).append(fo).toString();
+            drain(new StringReader(optimized), readBuffer);
+            stringBytes = Math.min(stringBytes, threadMXBean.getThreadAllocatedBytes(threadId) - start);
+
+            start = threadMXBean.getThreadAllocatedBytes(threadId);
+            BudgetWriter writer = new BudgetWriter(new RenderControl(null), pool, 256 * 1024);
+            for (int length = 0; length < FO_CHARS; length += line.length) {
+                writer.write(line, 0, line.length);
+            }
+            drain(writer.newReader(Collections.<TextEdit>emptyList()), readBuffer);
+            writer.release();
+            chunkedBytes = Math.min(chunkedBytes, threadMXBean.getThreadAllocatedBytes(threadId) - start);
+        }
+        System.out.println("Allocated bytes per " + FO_CHARS + " character FO: strings " + stringBytes
+                + ", pooled chunks " + chunkedBytes);
+
+        // The string path allocates the document several times over, at one or two bytes per character
+        assertTrue(stringBytes > 2L * FO_CHARS);
+        assertTrue(chunkedBytes < FO_CHARS / 8);
+    }
+
+    private static void drain(Reader reader, char[] buffer) throws IOException {
+        while (reader.read(buffer, 0, buffer.length) >= 0) {
+            // FOP's parser consumes the characters
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        return threadMXBean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threadMXBean : null;
+    }
+}
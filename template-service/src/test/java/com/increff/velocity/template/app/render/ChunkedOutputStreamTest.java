@@ -0,0 +1,107 @@
+package com.increff.velocity.template.app.render;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedOutputStreamTest {
+
+    private static final int PDF_BYTES = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 256 * 1024;
+    // FOP writes the PDF in small pieces
+    private static final int WRITE_SIZE = 4096;
+    private static final int RUNS = 5;
+
+    private byte[] pdf;
+    private BufferPool pool;
+
+    @Before
+    public void setUp() {
+        pdf = new byte[PDF_BYTES];
+        new Random(1).nextBytes(pdf);
+        pool = new BufferPool(false, 64L * 1024 * 1024);
+    }
+
+    @Test
+    public void testBase64MatchesTheEncoder() throws IOException {
+        ChunkedOutputStream stream = write(new ChunkedOutputStream(pool, CHUNK_SIZE));
+        ByteArrayOutputStream base64 = new ByteArrayOutputStream();
+        stream.writeBase64To(base64);
+
+        assertArrayEquals(Base64.getEncoder().encode(pdf), base64.toByteArray());
+        assertEquals(base64.size(), stream.getBase64Length());
+        stream.release();
+    }
+
+    /**
+     * Allocation per PDF of the response path before the pooled buffers, a growing byte array copied out and encoded
+     * into a Base64 string, against the pooled path once the pool is warm
+     */
+    @Test
+    public void testAllocatedBytesPerPdf() throws IOException {
+        com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+        Assume.assumeTrue(threadMXBean != null && threadMXBean.isThreadAllocatedMemoryEnabled());
+        long threadId = Thread.currentThread().getId();
+
+        long byteArrayBytes = Long.MAX_VALUE;
+        long chunkedBytes = Long.MAX_VALUE;
+        long streamAllocatedBytes = 0;
+        OutputStream response = new DiscardingOutputStream();
+        for (int run = 0; run < RUNS; run++) {
+            long start = threadMXBean.getThreadAllocatedBytes(threadId);
+            ByteArrayOutputStream byteArray = write(new ByteArrayOutputStream());
+            String base64 = Base64.getEncoder().encodeToString(byteArray.toByteArray());
+            response.write(base64.getBytes(StandardCharsets.US_ASCII));
+            byteArrayBytes = Math.min(byteArrayBytes, threadMXBean.getThreadAllocatedBytes(threadId) - start);
+
+            start = threadMXBean.getThreadAllocatedBytes(threadId);
+            ChunkedOutputStream chunked = write(new ChunkedOutputStream(pool, CHUNK_SIZE));
+            chunked.writeBase64To(response);
+            chunked.release();
+            chunkedBytes = Math.min(chunkedBytes, threadMXBean.getThreadAllocatedBytes(threadId) - start);
+            streamAllocatedBytes = chunked.getAllocatedBytes();
+        }
+        System.out.println("Allocated bytes per " + PDF_BYTES + " byte PDF: byte array " + byteArrayBytes
+                + ", pooled chunks " + chunkedBytes);
+
+        // The byte array path allocates the PDF several times over, the pooled path reuses its chunks
+        assertTrue(byteArrayBytes > 4L * PDF_BYTES);
+        assertTrue(chunkedBytes < PDF_BYTES / 16);
+        assertEquals(0, streamAllocatedBytes);
+    }
+
+    private <T extends OutputStream> T write(T out) throws IOException {
+        for (int offset = 0; offset < pdf.length; offset += WRITE_SIZE) {
+            out.write(pdf, offset, Math.min(WRITE_SIZE, pdf.length - offset));
+        }
+        return out;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        return threadMXBean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threadMXBean : null;
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+        }
+    }
+}
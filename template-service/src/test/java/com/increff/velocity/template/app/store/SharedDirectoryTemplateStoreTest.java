@@ -0,0 +1,144 @@
+package com.increff.velocity.template.app.store;
+
+import com.increff.velocity.template.app.model.TemplateVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedDirectoryTemplateStoreTest {
+
+    private static final long POLL_INTERVAL_MILLIS = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private SharedDirectoryTemplateStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.getRoot().toPath();
+        store = new SharedDirectoryTemplateStore(root, POLL_INTERVAL_MILLIS);
+        store.start();
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void testVersionsArePinned() throws IOException {
+        TemplateVersion first = store.save("invoice.fo.vm", bytes("v1"));
+        TemplateVersion second = store.save("invoice.fo.vm", bytes("v2"));
+
+        List<TemplateVersion> versions = store.getVersions("invoice.fo.vm");
+        assertEquals(2, versions.size());
+        assertEquals(first.getVersionId(), versions.get(0).getVersionId());
+        assertEquals(second.getVersionId(), versions.get(1).getVersionId());
+        // An older version stays readable by its id after a newer one is saved
+        assertArrayEquals(bytes("v1"), store.getContent("invoice.fo.vm", first.getVersionId()));
+        assertArrayEquals(bytes("v2"), store.getContent("invoice.fo.vm", second.getVersionId()));
+    }
+
+    @Test
+    public void testSavingTheLatestContentAgainAddsNoVersion() throws IOException {
+        TemplateVersion first = store.save("invoice.fo.vm", bytes("v1"));
+        TemplateVersion again = store.save("invoice.fo.vm", bytes("v1"));
+
+        assertEquals(first.getVersionId(), again.getVersionId());
+        assertEquals(1, store.getVersions("invoice.fo.vm").size());
+    }
+
+    @Test
+    public void testUnknownVersionsAreNotRead() throws IOException {
+        TemplateVersion version = store.save("invoice.fo.vm", bytes("v1"));
+        store.save("label.fo.vm", bytes("label"));
+
+        assertNull(store.getContent("invoice.fo.vm", "0000"));
+        // A version id of another template is not a version of this one
+        assertNull(store.getContent("label.fo.vm", version.getVersionId()));
+        assertNull(store.getContent("missing.fo.vm", version.getVersionId()));
+        assertTrue(store.getVersions("missing.fo.vm").isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidNameRejected() throws IOException {
+        store.save("../invoice.fo.vm", bytes("v1"));
+    }
+
+    @Test
+    public void testNamesEndingInLock() throws IOException {
+        store.save("invoice.fo.vm", bytes("v1"));
+        store.save("invoice.fo.vm.lock", bytes("v2"));
+        // An empty file in refs is a lock of an older release, not a template
+        Files.createFile(root.resolve("refs").resolve("label.fo.vm.lock"));
+
+        assertEquals(Arrays.asList("invoice.fo.vm", "invoice.fo.vm.lock"), store.getTemplateNames());
+        assertEquals(1, store.getVersions("invoice.fo.vm").size());
+        assertEquals(1, store.getVersions("invoice.fo.vm.lock").size());
+    }
+
+    @Test
+    public void testArtifacts() throws IOException {
+        TemplateVersion version = store.save("invoice.fo.vm", bytes("v1"));
+        store.saveArtifact(version.getVersionId(), "validation.json", bytes("{}"));
+
+        assertArrayEquals(bytes("{}"), store.getArtifact(version.getVersionId(), "validation.json"));
+        assertNull(store.getArtifact(version.getVersionId(), "missing.json"));
+    }
+
+    @Test
+    public void testOtherNodesAreNotified() throws Exception {
+        SharedDirectoryTemplateStore otherNode = new SharedDirectoryTemplateStore(root, POLL_INTERVAL_MILLIS);
+        otherNode.start();
+        try {
+            CountDownLatch changed = new CountDownLatch(1);
+            String[] changedName = new String[1];
+            otherNode.addChangeListener(templateName -> {
+                changedName[0] = templateName;
+                changed.countDown();
+            });
+
+            TemplateVersion version = store.save("invoice.fo.vm", bytes("v1"));
+
+            assertTrue(changed.await(5, TimeUnit.SECONDS));
+            assertEquals("invoice.fo.vm", changedName[0]);
+            assertEquals(version.getVersionId(), otherNode.getVersions("invoice.fo.vm").get(0).getVersionId());
+        } finally {
+            otherNode.close();
+        }
+    }
+
+    @Test
+    public void testSavingNodeIsNotified() throws IOException {
+        List<String> changed = new CopyOnWriteArrayList<>();
+        store.addChangeListener(changed::add);
+
+        store.save("invoice.fo.vm", bytes("v1"));
+
+        assertEquals(1, changed.size());
+        assertEquals("invoice.fo.vm", changed.get(0));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}